@@ -3,20 +3,23 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, can be computed
+ * together in one pass over the child, grouped by any number of columns.
+ * <p>
+ * Groups are held in memory up to a memory budget; beyond it they are
+ * spilled to disk in hash partitions, see {@link GroupAggregator}.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
     private  DbIterator[] chilren;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
     private DbIterator agitor;
-    private Aggregator ag;
+    private GroupAggregator ag;
 
     /**
      * Constructor.
@@ -38,34 +41,54 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield });
+    }
+
+    /**
+     * Constructor for several aggregates grouped by several columns.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator of each column in afields
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
         this.chilren = new DbIterator[1];
         this.chilren[0] = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
-        Type gbfieldType;
-        if (gfield == Aggregator.NO_GROUPING){
-            gbfieldType = null;
-        }else{
-            gbfieldType = chilren[0].getTupleDesc().getFieldType(gfield);
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+        TupleDesc td = child.getTupleDesc();
+        Type[] gbfieldTypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++) {
+            gbfieldTypes[i] = td.getFieldType(gfields[i]);
         }
-
-        if (chilren[0].getTupleDesc().getFieldType(afield) == Type.INT_TYPE){
-            ag = new IntegerAggregator(gfield, gbfieldType,afield, aop);
-        }else if (chilren[0].getTupleDesc().getFieldType(afield) == Type.STRING_TYPE){
-            ag = new StringAggregator(gfield, gbfieldType,afield, aop);
+        Type[] afieldTypes = new Type[afields.length];
+        for (int j = 0; j < afields.length; j++) {
+            afieldTypes[j] = td.getFieldType(afields[j]);
         }
-
+        try {
+            ag = new GroupAggregator(gfields, gbfieldTypes, afields, afieldTypes, aops);
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
+    }
 
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      *         field index in the <b>INPUT</b> tuples. If not, return
-     *         {@link simpledb.Aggregator#NO_GROUPING}
+     *         {@link simpledb.Aggregator#NO_GROUPING}. With several groupby
+     *         fields this is the first.
      * */
     public int groupField() {
 	// some code goes here
-	return this.gfield;
+	return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
     }
 
     /**
@@ -75,32 +98,67 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
 	// some code goes here
-	return chilren[0].getTupleDesc().getFieldName(gfield);
+	return gfields.length == 0 ? null : chilren[0].getTupleDesc().getFieldName(gfields[0]);
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, which
+     *         are also the leading fields of the output tuples
+     * */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
-     * @return the aggregate field
+     * @return the aggregate field; with several aggregates, the first
      * */
     public int aggregateField() {
 	// some code goes here
-	return this.afield;
+	return this.afields[0];
     }
 
     /**
      * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     *         tuples; with several aggregates, of the first
      * */
     public String aggregateFieldName() {
 	// some code goes here
-	return chilren[0].getTupleDesc().getFieldName(afield);
+	return chilren[0].getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator; with several aggregates, of the
+     *         first
      * */
     public Aggregator.Op aggregateOp() {
 	// some code goes here
-	return this.aop;
+	return this.aops[0];
+    }
+
+    /**
+     * @return the aggregate fields, in output order
+     * */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return the operator of each aggregate field
+     * */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
+    }
+
+    /**
+     * Set the number of bytes of groups the aggregation may hold in memory.
+     * More groups are spilled to disk.
+     */
+    public void setMemoryBudget(long bytes) {
+        ag.setMemoryBudget(bytes);
+    }
+
+    public long getMemoryBudget() {
+        return ag.getMemoryBudget();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -112,9 +170,17 @@ public class Aggregate extends Operator {
 	// some code goes here
         super.open();
 
+        ag.clear();
         chilren[0].open();
-        while (chilren[0].hasNext()){
-            ag.mergeTupleIntoGroup(chilren[0].next());
+        try {
+            while (chilren[0].hasNext()){
+                ag.mergeTupleIntoGroup(chilren[0].next());
+            }
+        } catch (RuntimeException e) {
+            // a failed spill
+            if (e.getCause() instanceof DbException)
+                throw (DbException) e.getCause();
+            throw e;
         }
         agitor = ag.iterator();
         agitor.open();
@@ -146,38 +212,45 @@ public class Aggregate extends Operator {
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
      * this will have one field - the aggregate column. If there is a group by
      * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * the aggregate value column. With several group by fields or aggregates,
+     * the group by fields come first, in order, followed by the aggregates.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
      * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * iterator. Group by columns keep their names in the child, except when
+     * a single aggregate is grouped by a single column.
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
-        Type[] typeAr;
-        String[] fieldAr;
-        if (gfield == Aggregator.NO_GROUPING){
-            typeAr = new Type[1];
-            fieldAr = new  String[1];
-            typeAr[0] = chilren[0].getTupleDesc().getFieldType(afield);
-            fieldAr[0] = chilren[0].getTupleDesc().getFieldName(afield);
-            return new TupleDesc(typeAr, fieldAr);
-        }else {
-            typeAr = new  Type[2];
-            fieldAr = new String[2];
-            typeAr[0] = chilren[0].getTupleDesc().getFieldType(gfield);
-            fieldAr[0] = nameOfAggregatorOp(aop)+chilren[0].getTupleDesc().getFieldName(gfield);
-            typeAr[1] = chilren[0].getTupleDesc().getFieldType(afield);
-            fieldAr[1] = nameOfAggregatorOp(aop)+chilren[0].getTupleDesc().getFieldName(afield);
-            return new TupleDesc(typeAr, fieldAr);
+        TupleDesc child = chilren[0].getTupleDesc();
+        if (afields.length == 1 && gfields.length == 0) {
+            return new TupleDesc(new Type[] { Type.INT_TYPE },
+                    new String[] { child.getFieldName(afields[0]) });
+        }
+        Type[] typeAr = new Type[gfields.length + afields.length];
+        String[] fieldAr = new String[typeAr.length];
+        boolean single = afields.length == 1 && gfields.length == 1;
+        for (int i = 0; i < gfields.length; i++) {
+            typeAr[i] = child.getFieldType(gfields[i]);
+            fieldAr[i] = (single ? nameOfAggregatorOp(aops[0]) : "") + child.getFieldName(gfields[i]);
         }
+        for (int j = 0; j < afields.length; j++) {
+            typeAr[gfields.length + j] = Type.INT_TYPE;
+            fieldAr[gfields.length + j] = nameOfAggregatorOp(aops[j]) + child.getFieldName(afields[j]);
+        }
+        return new TupleDesc(typeAr, fieldAr);
     }
 
     public void close() {
 	// some code goes here
         super.close();
-        agitor.close();
+        chilren[0].close();
+        if (agitor != null) {
+            agitor.close();
+            agitor = null;
+        }
+        ag.clear();
     }
 
     @Override
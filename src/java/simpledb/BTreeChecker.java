@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -54,12 +55,16 @@ public class BTreeChecker {
      * 2) sibling pointers.
      * 3) range invariants.
      * 4) record to page pointers.
-     * 5) occupancy invariants. (if enabled)
+     * 5) occupancy invariants. (if enabled, and never for B-link or prefix compressed files, whose pages are not merged)
+     * 6) the layout of internal pages, and for B-link files their high keys and right sibling pointers.
+     * 7) for prefix compressed files, the layout of all pages and their fence keys.
      */
     public static void checkRep(BTreeFile bt, TransactionId tid, HashMap<PageId, Page> dirtypages,
                                 boolean checkOccupancy) throws
             DbException, IOException, TransactionAbortedException {
         BTreeRootPtrPage rtptr = bt.getRootPtrPage(tid, dirtypages);
+        assert (rtptr.getVersion() == bt.getVersion());
+        checkOccupancy = checkOccupancy && !bt.isBLink() && !bt.isPrefixCompressed();
 
         if (rtptr.getRootId() == null) { // non existent root is a legal state.
             return;
@@ -68,6 +73,44 @@ public class BTreeChecker {
                     rtptr.getRootId(), null, null, rtptr.getId(), checkOccupancy, 0);
             assert (res.ptrLeft == null);
             assert (res.ptrRight == null);
+            if (bt.isBLink()) {
+                checkRightLinks(bt, tid, dirtypages, rtptr.getRootId());
+            }
+        }
+    }
+
+    /**
+     * checks that the internal pages of each level of a B-link tree are linked
+     * from left to right by their right sibling pointers.
+     */
+    static void checkRightLinks(BTreeFile bt, TransactionId tid, HashMap<PageId, Page> dirtypages,
+                                BTreePageId rootId) throws
+            TransactionAbortedException, DbException {
+        ArrayList<BTreePageId> level = new ArrayList<BTreePageId>();
+        level.add(rootId);
+        while (level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+            ArrayList<BTreePageId> next = new ArrayList<BTreePageId>();
+            for (int i = 0; i < level.size(); i++) {
+                BTreeInternalPage ipage = (BTreeInternalPage) bt.getPage(tid, dirtypages, level.get(i),
+                        Permissions.READ_ONLY);
+                BTreePageId right = ipage.getRightSiblingId();
+                if (i + 1 < level.size()) {
+                    assert (level.get(i + 1).equals(right));
+                } else {
+                    assert (right == null);
+                }
+
+                Iterator<BTreeEntry> it = ipage.iterator();
+                BTreeEntry e = null;
+                while (it.hasNext()) {
+                    e = it.next();
+                    next.add(e.getLeftChild());
+                }
+                if (e != null) {
+                    next.add(e.getRightChild());
+                }
+            }
+            level = next;
         }
     }
 
@@ -77,6 +120,7 @@ public class BTreeChecker {
             TransactionAbortedException, DbException {
         BTreePage page = (BTreePage )bt.getPage(tid, dirtypages, pageId, Permissions.READ_ONLY);
         assert(page.getParentId().equals(parentId));
+        assert(page.isCompressed() == bt.isPrefixCompressed());
 
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
             BTreeLeafPage bpage = (BTreeLeafPage) page;
@@ -86,6 +130,12 @@ public class BTreeChecker {
 
             BTreeInternalPage ipage = (BTreeInternalPage) page;
             ipage.checkRep(lowerBound, upperBound, checkOccupancy, depth);
+            assert (ipage.isBLink() == bt.isBLink());
+            if (ipage.isBLink()) {
+                Field highKey = ipage.getHighKey();
+                assert (highKey == null ? upperBound == null
+                        : upperBound != null && highKey.compare(Predicate.Op.EQUALS, upperBound));
+            }
 
             SubtreeSummary acc = null;
             BTreeEntry prev = null;
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 //import java.nio.channels.FileChannel;
 
 import simpledb.Predicate.Op;
@@ -15,6 +16,30 @@ import static simpledb.Predicate.Op.*;
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
  * 
+ * Inserts find their leaf page by descending the tree under short-term page latches
+ * rather than locks, so that only the leaf page is locked for the rest of the transaction.
+ * Splits and merges (structure modifications, SMOs) are serialized by an exclusive lock on
+ * the root pointer page, and lock every page they change as before.
+ * @see simpledb.BTreeLatches
+ * 
+ * A file may instead be laid out as a B-link tree (Lehman and Yao), in which each internal
+ * page also stores a high key and a pointer to its right sibling. A reader that reaches a
+ * page after a concurrent split moved the keys it is looking for can then follow the right
+ * sibling, so readers descend the tree under a single latch at a time and lock only the
+ * leaf pages they read. Pages of a B-link file are never merged or redistributed, so keys
+ * only ever move right. The layout is chosen when the file is created and is recorded in
+ * the root pointer page.
+ * @see simpledb.BTreeRootPtrPage#getVersion()
+ * 
+ * A file keyed on a string field may instead have prefix compressed pages. Each page stores
+ * the keys of the entries around it in its parent as fence keys, and leaves out of its keys
+ * the prefix these share, writing each key as a length byte and the rest of its characters
+ * rather than padding it to Type.STRING_LEN. The key of the entry added to the parent by a
+ * leaf split is cut down to the shortest prefix of the first key on the right page that is
+ * still greater than the last key on the left page, so internal pages hold short keys too.
+ * Pages of such a file are not merged or redistributed either, since a merged page would
+ * have to fit the keys of both pages with a shorter prefix.
+ * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
  * @see simpledb.BTreeHeaderPage#BTreeHeaderPage
@@ -24,9 +49,27 @@ import static simpledb.Predicate.Op.*;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final PageStore store;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final BTreeLatches latches = new BTreeLatches();
+	/** layout version given to the file if it is created by this BTreeFile */
+	private final int newVersion;
+	/** layout version of the file, or -1 until it has been read */
+	private volatile int version = -1;
+
+	/** times an insert descends under latches before it takes the locked path */
+	private static final int MAX_OPTIMISTIC_DESCENTS = 8;
+	/** deeper descents than this are taken to have read a page in flux */
+	private static final int MAX_HEIGHT = 64;
+	/** times a reader of a B-link file descends under latches before it takes the locked path */
+	private static final int MAX_BLINK_DESCENTS = 16;
+	/** internal pages a B-link descent visits before it is taken to have read a page in flux */
+	private static final int MAX_BLINK_PAGES = 1 << 16;
+
+	/** fraction of each leaf page filled by a bulk insert that is not given a fill factor */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -37,10 +80,31 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, BTreeRootPtrPage.VERSION_BPLUS);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, which is laid out
+	 * according to version if it is empty. A file that already exists keeps the
+	 * layout it was created with.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param version - BTreeRootPtrPage.VERSION_BPLUS, BTreeRootPtrPage.VERSION_BLINK or
+	 *            BTreeRootPtrPage.VERSION_PREFIX, which needs a string key field
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, int version) {
+		if(version == BTreeRootPtrPage.VERSION_PREFIX && td.getFieldType(key) != Type.STRING_TYPE) {
+			throw new IllegalArgumentException("only files keyed on a string field can be prefix compressed");
+		}
 		this.f = f;
+		this.store = new PageStore(f, PageStore.Durability.NONE);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.newVersion = version;
 	}
 
 	/**
@@ -72,6 +136,17 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	public void force() throws IOException {
+		store.force();
+	}
+
+	/**
+	 * Close the file. The file is reopened if the table is used again.
+	 */
+	public void close() throws IOException {
+		store.close();
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -81,13 +156,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = store.read(pageBuf, 0);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -101,12 +174,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = store.read(pageBuf, pageOffset(id.pageNumber()));
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -130,14 +198,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -151,24 +211,43 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			store.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			store.write(data, pageOffset(id.pageNumber()));
 		}
 	}
+
+	/**
+	 * Returns the file offset of the page with the given number. Page 0 is the
+	 * root pointer page, which is smaller than the others.
+	 */
+	private static long pageOffset(int pageNumber) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNumber-1) * BufferPool.getPageSize();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((store.size() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Estimates the number of levels from the root to the leaves, including
+	 * the leaves, from the number of pages and the fan-out of an internal
+	 * page. Used by the optimizer to cost index lookups.
+	 */
+	public int estimateHeight() {
+		int fanout = Math.max(2, BufferPool.getPageSize()
+				/ (td.getFieldType(keyField).getLen() + BTreePage.INDEX_SIZE));
+		return 1 + (int) Math.ceil(Math.log(Math.max(1, numPages())) / Math.log(fanout));
 	}
 
 	/**
@@ -178,6 +257,38 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Returns the layout version of this file, creating the file if it is empty
+	 * @return BTreeRootPtrPage.VERSION_BPLUS, BTreeRootPtrPage.VERSION_BLINK or
+	 * BTreeRootPtrPage.VERSION_PREFIX
+	 */
+	public int getVersion() {
+		if(version < 0) {
+			try {
+				createIfEmpty();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			// the version never changes, so the copy on disk will do
+			version = ((BTreeRootPtrPage) readPage(BTreeRootPtrPage.getId(tableid))).getVersion();
+		}
+		return version;
+	}
+
+	/**
+	 * Returns true if this file is laid out as a B-link tree
+	 */
+	public boolean isBLink() {
+		return getVersion() == BTreeRootPtrPage.VERSION_BLINK;
+	}
+
+	/**
+	 * Returns true if the pages of this file are prefix compressed
+	 */
+	public boolean isPrefixCompressed() {
+		return getVersion() == BTreeRootPtrPage.VERSION_PREFIX;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -202,20 +313,9 @@ public class BTreeFile implements DbFile {
 		if (pid.pgcateg() == BTreePageId.LEAF){
 			return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
 		}else{
-			Page btreepage = getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
-			BTreeInternalPage btintpage = (BTreeInternalPage) btreepage;
-			Iterator<BTreeEntry> btiter = btintpage.iterator();
-			if (f == null){
-				return findLeafPage(tid,dirtypages,btiter.next().getLeftChild(),perm,f);
-			}
-			BTreeEntry entry = null;
-			for (int i = 0; i < btintpage.getNumEntries(); i++) {
-				entry = btiter.next();
-				if (f.compare(LESS_THAN_OR_EQ, entry.getKey())){
-					return findLeafPage(tid,dirtypages,entry.getLeftChild(),perm,f);
-				}
-			}
-			return findLeafPage(tid,dirtypages,entry.getRightChild(),perm,f);
+			BTreeInternalPage btintpage = (BTreeInternalPage) getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
+			// binary search for the child, rather than walking the page's entries
+			return findLeafPage(tid,dirtypages,btintpage.getChildId(btintpage.findChildSlot(f)),perm,f);
 
 		}
 
@@ -278,16 +378,37 @@ public class BTreeFile implements DbFile {
 		// split evenly
 		Iterator<Tuple> moveTuple  =  page.reverseIterator();
 		int moveNum = page.getNumTuples()/2;
+
+		// on prefix compressed pages, the key copied up only has to fall between the
+		// two halves, and the new page gets the upper part of the fences before the
+		// tuples move, so that they are stored without its prefix
+		Field separator = null;
+		if (page.isCompressed()) {
+			Iterator<Tuple> it = page.reverseIterator();
+			for (int i = 1; i < moveNum; i++) {
+				it.next();
+			}
+			Field rightMin = it.next().getField(keyField);
+			separator = getSeparator(it.next().getField(keyField), rightMin);
+			newLeafPage.setFences(separator, page.getHighFence());
+		}
+
 		Tuple move = null;
 		for (int i = 0; i < moveNum; i++) {
 			move = moveTuple.next();
 			page.deleteTuple(move);
 			newLeafPage.insertTuple(move);
 		}
+		if (page.isCompressed()) {
+			page.setFences(page.getLowFence(), separator);
+		}
+		else {
+			separator = move.getField(keyField);
+		}
 
 		// copy up middle key
-		BTreeInternalPage parentPage = getParentWithEmptySlots(tid,dirtypages,page.getParentId(),move.getField(keyField));
-		BTreeEntry newEntry =new BTreeEntry(move.getField(keyField),page.getId(),newLeafPage.getId());
+		BTreeInternalPage parentPage = getParentWithEmptySlots(tid,dirtypages,page.getParentId(),separator);
+		BTreeEntry newEntry =new BTreeEntry(separator,page.getId(),newLeafPage.getId());
 		parentPage.insertEntry(newEntry);
 		newLeafPage.setParentId(parentPage.getId());
 		page.setParentId(parentPage.getId());
@@ -302,14 +423,38 @@ public class BTreeFile implements DbFile {
 		page.setRightSiblingId(newLeafPage.getId());
 
 
-		// return page
-		if (field.compare(Op.GREATER_THAN_OR_EQ, move.getField(keyField))){
+		// return page; a key equal to a cut down separator must go to the left page,
+		// since its high fence is the separator
+		if (field.compare(page.isCompressed() ? Op.GREATER_THAN : Op.GREATER_THAN_OR_EQ, separator)){
 			return newLeafPage;
 		}else{return page;}
 
 
 
 
+	}
+
+	/**
+	 * Choose the key of the entry between two leaf pages of a prefix compressed file (suffix
+	 * truncation): the shortest prefix of the first key on the right page that is greater than
+	 * the last key on the left page, or the first key itself if the two are equal.
+	 *
+	 * @param leftMax - the last key on the left page
+	 * @param rightMin - the first key on the right page
+	 * @return the key of the entry
+	 */
+	private static Field getSeparator(Field leftMax, Field rightMin) {
+		String left = ((StringField) leftMax).getValue();
+		String right = ((StringField) rightMin).getValue();
+		int n = Math.min(left.length(), right.length());
+		int i = 0;
+		while(i < n && left.charAt(i) == right.charAt(i)) {
+			i++;
+		}
+		if(i == right.length()) {
+			return rightMin;
+		}
+		return new StringField(right.substring(0, i + 1), Type.STRING_LEN);
 	}
 
 	/**
@@ -343,6 +488,17 @@ public class BTreeFile implements DbFile {
 		// split evenly
 		Iterator<BTreeEntry> moveEntry  =  page.reverseIterator();
 		int moveNum = page.getNumEntries()/2;
+
+		// on prefix compressed pages, the new page gets the upper part of the fences
+		// before the entries move, so that they are stored without its prefix
+		if (page.isCompressed()) {
+			Iterator<BTreeEntry> it = page.reverseIterator();
+			for (int i = 0; i < moveNum; i++) {
+				it.next();
+			}
+			newInternalPage.setFences(it.next().getKey(), page.getHighFence());
+		}
+
 		BTreeEntry move = null;
 		for (int i = 0; i < moveNum; i++) {
 			move = moveEntry.next();
@@ -356,7 +512,21 @@ public class BTreeFile implements DbFile {
 		BTreeEntry newEntry = new BTreeEntry(move.getKey(),page.getId(),newInternalPage.getId());;
 		page.deleteKeyAndRightChild(move);
 		parentPage.insertEntry(newEntry);
+		newInternalPage.setParentId(parentPage.getId());
+		page.setParentId(parentPage.getId());
 		updateParentPointers(tid,dirtypages,newInternalPage);
+		if (page.isCompressed()) {
+			page.setFences(page.getLowFence(), move.getKey());
+		}
+
+		// in a B-link tree the new page takes over the upper part of the key range,
+		// and readers that still reach the old page for it move right to the new one
+		if(page.isBLink()) {
+			newInternalPage.setHighKey(page.getHighKey());
+			newInternalPage.setRightSiblingId(page.getRightSiblingId());
+			page.setHighKey(move.getKey());
+			page.setRightSiblingId(newInternalPage.getId());
+		}
 
 		// return page
 		if (field.compare(GREATER_THAN_OR_EQ, move.getKey())){
@@ -408,8 +578,9 @@ public class BTreeFile implements DbFile {
 					Permissions.READ_WRITE);
 		}
 
-		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
+		// split the parent if needed; a prefix compressed page may need to be split
+		// again if the half that is returned still has long keys
+		while(parent.getNumEmptySlots() == 0) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
 		}
 
@@ -488,18 +659,560 @@ public class BTreeFile implements DbFile {
 	 */
 	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
+		Page p;
 		if(dirtypages.containsKey(pid)) {
-			return dirtypages.get(pid);
+			p = dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
-			return p;
+		}
+		// during an SMO, keep optimistic descents off the pages being changed
+		if(perm == Permissions.READ_WRITE) {
+			latches.writeLatch(tid, pid);
+		}
+		return p;
+	}
+
+	/**
+	 * Find and lock the leaf page into which a tuple with key field f should be inserted,
+	 * descending the tree under page latches instead of locks. Only the leaf page is locked,
+	 * with READ_WRITE permission. If an SMO may have changed the tree since the descent
+	 * started, the leaf page is given up again and the descent is retried.
+	 *
+	 * @param tid - the transaction id
+	 * @param f - the key field of the tuple to insert
+	 * @return the leaf page, or null if it has no empty slots, if the tree has no root page
+	 * yet, or if every descent failed
+	 * @see #descend(Field)
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Field f)
+			throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+		BufferPool bufferPool = Database.getBufferPool();
+		LockManager lockManager = bufferPool.getLockManager();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+
+		for(int i = 0; i < MAX_OPTIMISTIC_DESCENTS; i++) {
+			// the SMO of a transaction that has not ended may still be rolled back,
+			// which changes the tree without starting another SMO, so wait for it to end
+			long smoCount = latches.smoCount();
+			if(lockManager.isLockedExclusivelyByOther(tid, rootPtrId)) {
+				bufferPool.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+				bufferPool.releasePage(tid, rootPtrId);
+				continue;
+			}
+			BTreePageId leafId = descend(f);
+			if(leafId == null) {
+				continue;
+			}
+
+			// lock the leaf page with no latches held, then make sure that no SMO
+			// has started or is running since the descent started
+			boolean held = bufferPool.holdsLock(tid, leafId);
+			Page page = bufferPool.getPage(tid, leafId, Permissions.READ_WRITE);
+			if(latches.smoCount() == smoCount && !lockManager.isLockedExclusivelyByOther(tid, rootPtrId)) {
+				BTreeLeafPage leafPage = (BTreeLeafPage) page;
+				if(leafPage.getNumEmptySlots() > 0) {
+					return leafPage;
+				}
+				if(!held) {
+					bufferPool.releasePage(tid, leafId);
+				}
+				return null;
+			}
+			// the page has only been read, so its lock can be given up
+			if(!held) {
+				bufferPool.releasePage(tid, leafId);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the left-most leaf page possibly containing the key field f without locking any
+	 * page. Each page on the way is read-latched, and the latch of a parent is only released
+	 * once its child is latched. A latch held by an SMO is not waited for.
+	 *
+	 * The result may be out of date as soon as the latches are released, and must be checked
+	 * against the SMO count by the caller.
+	 *
+	 * @param f - the field to search for
+	 * @return the id of the leaf page, or null if the tree has no root page yet or the
+	 * descent ran into a page held by an SMO
+	 */
+	private BTreePageId descend(Field f) throws DbException {
+		BufferPool bufferPool = Database.getBufferPool();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		ReentrantReadWriteLock.ReadLock latch = latches.tryReadLatch(pid);
+		if(latch == null) {
+			return null;
+		}
+		try {
+			pid = ((BTreeRootPtrPage) bufferPool.peekPage(pid)).getRootId();
+			for(int depth = 0; pid != null && pid.pgcateg() == BTreePageId.INTERNAL; depth++) {
+				ReentrantReadWriteLock.ReadLock child = depth < MAX_HEIGHT ? latches.tryReadLatch(pid) : null;
+				if(child == null) {
+					return null;
+				}
+				latch.unlock();
+				latch = child;
+				BTreeInternalPage page = (BTreeInternalPage) bufferPool.peekPage(pid);
+				pid = page.getChildId(page.findChildSlot(f));
+			}
+			return pid;
+		} catch(RuntimeException e) {
+			// a page freed by a merge after its parent was read may hold anything;
+			// the SMO count tells the caller to try again
+			return null;
+		} finally {
+			latch.unlock();
+		}
+	}
+
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f with
+	 * READ_ONLY permission, for a reader. In a B-link file only the leaf page is locked:
+	 * the tree is descended under one page latch at a time, moving right past pages
+	 * that a concurrent split has left behind, so that the reader does not wait for
+	 * SMOs on the internal pages. Otherwise, or if no descent succeeds, the root
+	 * pointer page and every page on the path are locked, and all but the leaf page
+	 * are unlocked again once it is found.
+	 *
+	 * If f is null, it finds the left-most leaf page -- used for the iterator
+	 *
+	 * @param tid - the transaction id
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f
+	 * @see #descendBLink(Field)
+	 */
+	BTreeLeafPage findLeafPageForRead(TransactionId tid, Field f)
+			throws DbException, TransactionAbortedException {
+		BufferPool bufferPool = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+
+		if(isBLink()) {
+			for(int i = 0; i < MAX_BLINK_DESCENTS; i++) {
+				BTreePageId leafId = descendBLink(f);
+				if(leafId != null) {
+					// a split that was rolled back may have left the descent on a page
+					// that is no longer part of the tree, so check the page once it is locked
+					boolean held = bufferPool.holdsLock(tid, leafId);
+					BTreeLeafPage page = (BTreeLeafPage) bufferPool.getPage(tid, leafId, Permissions.READ_ONLY);
+					BTreePageId parentId = page.getParentId();
+					if(parentId.pgcateg() != BTreePageId.ROOT_PTR
+							|| leafId.equals(((BTreeRootPtrPage) bufferPool.peekPage(rootPtrId)).getRootId())) {
+						return page;
+					}
+					if(!held) {
+						bufferPool.releasePage(tid, leafId);
+					}
+				}
+				Thread.yield();
+			}
+		}
+
+		// the locks on the root pointer page and the internal pages only need to keep
+		// SMOs out while the path is followed. Held until tid ends, they would hold up
+		// every SMO, and two readers that both go on to run an SMO would deadlock
+		ArrayList<PageId> path = new ArrayList<PageId>();
+		if(!bufferPool.holdsLock(tid, rootPtrId)) {
+			path.add(rootPtrId);
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bufferPool.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			if(!bufferPool.holdsLock(tid, pid)) {
+				path.add(pid);
+			}
+			BTreeInternalPage page = (BTreeInternalPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+			pid = page.getChildId(page.findChildSlot(f));
+		}
+		BTreeLeafPage page = (BTreeLeafPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+		for(PageId lockedId : path) {
+			bufferPool.releasePage(tid, lockedId);
+		}
+		return page;
+	}
+
+	/**
+	 * Find the left-most leaf page possibly containing the key field f in a B-link file
+	 * without locking any page. Only one page is read-latched at a time: if a split has
+	 * moved part of an internal page's keys to its right sibling since its parent was
+	 * read, i.e. f is above the page's high key, the descent follows the right sibling.
+	 * A latch held by an SMO is not waited for.
+	 *
+	 * @param f - the field to search for
+	 * @return the id of the leaf page, or null if the descent ran into a page held by an
+	 * SMO or a page zeroed by a rolled back split
+	 */
+	private BTreePageId descendBLink(Field f) throws DbException {
+		BufferPool bufferPool = Database.getBufferPool();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		ReentrantReadWriteLock.ReadLock latch = latches.tryReadLatch(pid);
+		if(latch == null) {
+			return null;
+		}
+		try {
+			pid = ((BTreeRootPtrPage) bufferPool.peekPage(pid)).getRootId();
+		} finally {
+			latch.unlock();
+		}
+
+		try {
+			for(int visited = 0; pid != null && pid.pgcateg() == BTreePageId.INTERNAL; visited++) {
+				latch = visited < MAX_BLINK_PAGES ? latches.tryReadLatch(pid) : null;
+				if(latch == null) {
+					return null;
+				}
+				try {
+					BTreeInternalPage page = (BTreeInternalPage) bufferPool.peekPage(pid);
+					if(page.getNumEntries() == 0) {
+						return null;
+					}
+					Field highKey = page.getHighKey();
+					if(f != null && highKey != null && f.compare(GREATER_THAN, highKey)) {
+						pid = page.getRightSiblingId();
+					}
+					else {
+						pid = page.getChildId(page.findChildSlot(f));
+					}
+				} finally {
+					latch.unlock();
+				}
+			}
+			return pid;
+		} catch(RuntimeException e) {
+			// a page zeroed by a rolled back split may hold anything
+			return null;
 		}
 	}
 
+	/**
+	 * Start a structure modification (SMO) on behalf of tid: get an exclusive lock on the
+	 * root pointer page, which serializes SMOs and keeps the optimistic descents of other
+	 * transactions waiting until the SMO ends, and write-latch the pages tid has changed so
+	 * far and every page it locks with READ_WRITE permission until the SMO ends.
+	 *
+	 * The leaf pages the SMO is expected to change are locked with READ_WRITE permission
+	 * first, along with their right siblings, so that the SMO does not wait for another
+	 * transaction while it holds the root pointer page. The ids may be out of date, as
+	 * the SMO finds its pages again from the root.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages tid has changed so far
+	 * @param leaves - the leaf pages the SMO is expected to change; null ids are skipped
+	 * @return the pages tid held locks on before the SMO, or null if the SMO cannot be a
+	 * nested top action because tid already holds the root pointer page exclusively, i.e.
+	 * an earlier SMO of tid is undone along with tid
+	 * @see #endSmo(TransactionId, HashMap, boolean, Set)
+	 */
+	private Set<PageId> beginSmo(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId... leaves)
+			throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+		BufferPool bufferPool = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		Set<PageId> heldBefore = null;
+		if(!bufferPool.getLockManager().holdsExclusiveLock(tid, rootPtrId)) {
+			heldBefore = new HashSet<PageId>(bufferPool.getLockManager().getLockedPages(tid));
+			heldBefore.remove(rootPtrId);
+			try {
+				for(BTreePageId leafId : leaves) {
+					if(leafId != null) {
+						BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+						if(leaf.getRightSiblingId() != null) {
+							getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_WRITE);
+						}
+					}
+				}
+			} catch(RuntimeException e) {
+				// a page freed since its id was read may hold anything
+			}
+		}
+		bufferPool.getPage(tid, rootPtrId, Permissions.READ_WRITE);
+		latches.beginSmo(tid);
+		for(PageId pid : dirtypages.keySet()) {
+			latches.writeLatch(tid, (BTreePageId) pid);
+		}
+		return heldBefore;
+	}
+
+	/**
+	 * End the SMO of tid, releasing its page latches. If the SMO failed part way, e.g.
+	 * because tid was chosen as a deadlock victim, the pages it has changed in place are
+	 * marked dirty, so that aborting tid restores them.
+	 *
+	 * If the SMO completed and heldBefore is not null, it ends as a nested top action:
+	 * it is kept even if tid aborts, and the pages it locked are released, including the
+	 * root pointer page, unless they hold uncommitted tuples of tid. If the SMO cannot be
+	 * kept, the pages stay locked until tid ends, and so does the root pointer page.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages tid has locked with READ_WRITE permission; the pages
+	 * the SMO releases are removed
+	 * @param done - whether the SMO completed
+	 * @param heldBefore - the pages tid held locks on before the SMO, or null
+	 * @see #finishSmo(TransactionId, HashMap, Set)
+	 */
+	private void endSmo(TransactionId tid, HashMap<PageId, Page> dirtypages, boolean done, Set<PageId> heldBefore)
+			throws DbException, IOException {
+		Set<PageId> unlock = Collections.emptySet();
+		try {
+			if(!done) {
+				for(Page p : dirtypages.values()) {
+					p.markDirty(true, tid);
+				}
+			}
+			else if(heldBefore != null) {
+				unlock = finishSmo(tid, dirtypages, heldBefore);
+			}
+		} finally {
+			latches.endSmo(tid);
+		}
+		for(PageId pid : unlock) {
+			Database.getBufferPool().releasePage(tid, pid);
+		}
+	}
+
+	/**
+	 * Make the completed SMO of tid a nested top action. Undo restores whole pages, so
+	 * each leaf page the SMO has changed gets a new undo image: the page as the SMO leaves
+	 * it, holding only the committed tuples of the leaf pages the SMO has changed that fall
+	 * into its key range. The leaf pages whose undo image differs from the page hold
+	 * uncommitted changes of tid and stay locked, as do the pages tid held before. Every
+	 * other page the SMO has changed is released: it has nothing left to undo, and like
+	 * the pages of a committed transaction it stays dirty under BufferPool.SYSTEM_TID, not
+	 * tid, until it is written back.
+	 *
+	 * The new undo images and the released pages are logged in an SMO record, so that
+	 * recovery redoes the SMO and undoes tid on top of it. The record need not be forced:
+	 * a page is only written back, and tid only commits, after forcing the log.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages tid has locked with READ_WRITE permission
+	 * @param heldBefore - the pages tid held locks on before the SMO
+	 * @return the pages to unlock, or no pages if the committed tuples do not fit in
+	 * the pages the SMO leaves, in which case the SMO is undone along with tid
+	 * @see LogFile#logSmo(TransactionId, List, List)
+	 */
+	private Set<PageId> finishSmo(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<PageId> heldBefore)
+			throws DbException, IOException {
+		BufferPool bufferPool = Database.getBufferPool();
+		LogFile log = Database.getLogFile();
+
+		// the leaf pages the SMO has changed hold only committed tuples unless tid had
+		// changed one of them before, in which case each is rebuilt from its undo image
+		HashMap<PageId, ArrayList<Tuple>> assigned = new HashMap<PageId, ArrayList<Tuple>>();
+		HashSet<PageId> changed = new HashSet<PageId>();
+		if(hasUncommittedTuples(tid, dirtypages)) {
+			// gather the committed tuples, by value, from the undo images of the leaf pages
+			HashMap<List<Field>, ArrayDeque<Tuple>> committed = new HashMap<List<Field>, ArrayDeque<Tuple>>();
+			ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+			HashMap<PageId, Field[]> ranges = new HashMap<PageId, Field[]>();
+			for(Page p : dirtypages.values()) {
+				if(((BTreePageId) p.getId()).pgcateg() != BTreePageId.LEAF) {
+					continue;
+				}
+				Iterator<Tuple> it = getCommittedImage(tid, (BTreeLeafPage) p).iterator();
+				while(it.hasNext()) {
+					Tuple t = it.next();
+					committed.computeIfAbsent(getValues(t), k -> new ArrayDeque<Tuple>()).add(t);
+				}
+				if(getKeyRange(dirtypages, (BTreePageId) p.getId(), ranges) != null) {
+					leaves.add((BTreeLeafPage) p);
+				}
+			}
+
+			// a committed tuple stays on the page it is on, and the others, which tid has
+			// deleted, go to a page whose key range they fall into
+			for(BTreeLeafPage leaf : leaves) {
+				ArrayList<Tuple> ts = new ArrayList<Tuple>();
+				Iterator<Tuple> it = leaf.iterator();
+				while(it.hasNext()) {
+					ArrayDeque<Tuple> same = committed.get(getValues(it.next()));
+					if(same != null && !same.isEmpty()) {
+						ts.add(same.poll());
+					}
+					else {
+						changed.add(leaf.getId());
+					}
+				}
+				assigned.put(leaf.getId(), ts);
+			}
+			for(ArrayDeque<Tuple> rest : committed.values()) {
+				for(Tuple t : rest) {
+					Field key = t.getField(keyField);
+					BTreeLeafPage target = null;
+					for(BTreeLeafPage leaf : leaves) {
+						Field[] range = ranges.get(leaf.getId());
+						if((range[0] == null || !key.compare(LESS_THAN, range[0]))
+								&& (range[1] == null || !key.compare(GREATER_THAN, range[1]))) {
+							target = leaf;
+							break;
+						}
+					}
+					if(target == null) {
+						return Collections.emptySet();
+					}
+					assigned.get(target.getId()).add(t);
+					changed.add(target.getId());
+				}
+			}
+		}
+
+		ArrayList<Page> kept = new ArrayList<Page>();
+		ArrayList<Page> released = new ArrayList<Page>();
+		ArrayList<Page> unchanged = new ArrayList<Page>();
+		HashMap<PageId, byte[]> images = new HashMap<PageId, byte[]>();
+		for(Page p : dirtypages.values()) {
+			if(changed.contains(p.getId())) {
+				ArrayList<Tuple> ts = assigned.get(p.getId());
+				ts.sort((a, b) -> a.getField(keyField).compare(LESS_THAN, b.getField(keyField)) ? -1
+						: a.getField(keyField).compare(GREATER_THAN, b.getField(keyField)) ? 1 : 0);
+				BTreeLeafPage image = new BTreeLeafPage((BTreePageId) p.getId(), p.getPageData(), keyField);
+				try {
+					image.setTuples(ts);
+				} catch(DbException e) {
+					return Collections.emptySet();
+				}
+				images.put(p.getId(), image.getPageData());
+				kept.add(image);
+				continue;
+			}
+			// each page is serialized once, for the comparison and its new before image
+			byte[] data = p.getPageData();
+			images.put(p.getId(), data);
+			if(heldBefore.contains(p.getId())) {
+				kept.add(p);
+			}
+			else if(Arrays.equals(data, p instanceof BTreePage ? ((BTreePage) p).getBeforeImageData()
+					: p.getBeforeImage().getPageData())) {
+				unchanged.add(p);
+			}
+			else {
+				released.add(p);
+			}
+		}
+
+		log.logSmo(tid, kept, released);
+		for(Page p : released) {
+			setBeforeImage(p, images.get(p.getId()));
+			p.markDirty(true, BufferPool.SYSTEM_TID);
+			bufferPool.updatePage(p, tid);
+			dirtypages.remove(p.getId());
+		}
+		for(Page p : unchanged) {
+			dirtypages.remove(p.getId());
+		}
+		Set<PageId> unlock = bufferPool.getLockManager().getLockedPages(tid);
+		unlock.removeAll(heldBefore);
+		for(Page p : kept) {
+			setBeforeImage(dirtypages.get(p.getId()), images.get(p.getId()));
+			unlock.remove(p.getId());
+		}
+		return unlock;
+	}
+
+	/**
+	 * Set the before image of a page an SMO has changed to data, without serializing the
+	 * page again where the page allows it. Pages other than BTreePages take their current
+	 * contents, which data must then be.
+	 */
+	private static void setBeforeImage(Page p, byte[] data) {
+		if(p instanceof BTreePage) {
+			((BTreePage) p).setBeforeImage(data);
+		}
+		else {
+			p.setBeforeImage();
+		}
+	}
+
+	/**
+	 * Return true if tid has changed one of the leaf pages of its SMO before the SMO
+	 * started. The SMO changes pages in place, and they are only marked dirty once it
+	 * ends, so a page that is not dirty and has not been stolen holds what tid found.
+	 */
+	private boolean hasUncommittedTuples(TransactionId tid, HashMap<PageId, Page> dirtypages) throws IOException {
+		for(Page p : dirtypages.values()) {
+			if(((BTreePageId) p.getId()).pgcateg() == BTreePageId.LEAF
+					&& (tid.equals(p.isDirty()) || Database.getLogFile().getUndoImage(tid, p.getId()) != null)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return the image undo restores a leaf page locked by tid to, i.e. the page with
+	 * only committed tuples.
+	 */
+	private BTreeLeafPage getCommittedImage(TransactionId tid, BTreeLeafPage page) throws IOException {
+		Page image = Database.getLogFile().getUndoImage(tid, page.getId());
+		return (BTreeLeafPage) (image != null ? image : page.getBeforeImage());
+	}
+
+	/**
+	 * Return the range of keys a page may hold, as the pair {low, high} of the keys in its
+	 * ancestors on either side of it, where null means unbounded. Both bounds are inclusive,
+	 * as equal keys may be on either side of an entry. The internal pages do not change
+	 * while tid runs an SMO, so they are read without locking them.
+	 *
+	 * @param dirtypages - the pages tid has locked with READ_WRITE permission
+	 * @param pid - the page
+	 * @param ranges - the ranges found so far
+	 * @return the range, or null if the page is no longer part of the tree
+	 */
+	private Field[] getKeyRange(HashMap<PageId, Page> dirtypages, BTreePageId pid, HashMap<PageId, Field[]> ranges)
+			throws DbException {
+		if(ranges.containsKey(pid)) {
+			return ranges.get(pid);
+		}
+		ranges.put(pid, null);
+		Field[] range = null;
+		BTreePageId parentId = ((BTreePage) getSmoPage(dirtypages, pid)).getParentId();
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			if(pid.equals(((BTreeRootPtrPage) getSmoPage(dirtypages, parentId)).getRootId())) {
+				range = new Field[2];
+			}
+		}
+		else if(parentId.pgcateg() == BTreePageId.INTERNAL) {
+			Field[] parentRange = getKeyRange(dirtypages, parentId, ranges);
+			if(parentRange != null) {
+				Iterator<BTreeEntry> it = ((BTreeInternalPage) getSmoPage(dirtypages, parentId)).iterator();
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					if(e.getRightChild().equals(pid)) {
+						range = new Field[] {e.getKey(), parentRange[1]};
+					}
+					else if(e.getLeftChild().equals(pid)) {
+						range = new Field[] {range == null ? parentRange[0] : range[0], e.getKey()};
+						break;
+					}
+				}
+			}
+		}
+		ranges.put(pid, range);
+		return range;
+	}
+
+	/** Return a page tid has changed during its SMO, or else the page in the buffer pool. */
+	private Page getSmoPage(HashMap<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().peekPage(pid);
+	}
+
+	/** Return the values of a tuple, which identify it regardless of where it is stored. */
+	private List<Field> getValues(Tuple t) {
+		ArrayList<Field> values = new ArrayList<Field>();
+		Iterator<Field> it = t.fields();
+		while(it.hasNext()) {
+			values.add(it.next());
+		}
+		return values;
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order.
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -512,33 +1225,349 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		// most inserts find an empty slot in their leaf page, and lock only that page
+		BTreeLeafPage leafPage = findLeafPageOptimistic(tid, t.getField(keyField));
+		if(leafPage != null) {
+			leafPage.insertTuple(t);
+			dirtyPagesArr.add(leafPage);
+			return dirtyPagesArr;
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Set<PageId> heldBefore = beginSmo(tid, dirtypages, descend(t.getField(keyField)));
+		boolean done = false;
+		try {
+			// use the root pointer page to locate the root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
+
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available (more than
+			// once if the half of a prefix compressed page that is returned is still full)
+			leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+			while(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			}
+			if(heldBefore != null) {
+				// keep the leaf page locked for the tuple, which is inserted once the
+				// SMO has ended so that the SMO has no uncommitted tuple to take out
+				heldBefore.add(leafPage.getId());
+			}
+			done = true;
+		} finally {
+			endSmo(tid, dirtypages, done, heldBefore);
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Insert a batch of tuples in bulk, filling leaf pages to DEFAULT_FILL_FACTOR.
+	 * @see #bulkInsert(TransactionId, DbIterator, double)
+	 */
+	public long bulkInsert(TransactionId tid, DbIterator tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		return bulkInsert(tid, tuples, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Insert a batch of tuples in bulk. The batch is sorted on the key field first, on disk if
+	 * it does not fit in memory (see OrderBy). It is then merged into the leaf pages from left
+	 * to right: the tree is descended once per leaf page the batch falls into, rather than once
+	 * per tuple, and the tuples of that page together with the batch tuples that belong there
+	 * are written back to it and to new pages appended to its right, each filled to fillFactor.
+	 * Each new page is added to its parent as soon as it is started, so the internal levels
+	 * grow from the bottom up, one entry per leaf page.
+	 *
+	 * The whole load is a single SMO, so other writers wait until tid ends. Pages are handed to
+	 * the buffer pool as soon as they are finished, marked dirty by tid, so that the batch need
+	 * not fit in the buffer pool, which logs and writes them out as it needs the frames. Unlike
+	 * insertTuple, this means the caller has nothing left to update in the buffer pool.
+	 *
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to insert; the iterator is opened and closed here
+	 * @param fillFactor - the fraction of each leaf page written to fill, from 0.5 (the
+	 * minimum occupancy of a page) to 1
+	 * @return the number of tuples inserted
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	public long bulkInsert(TransactionId tid, DbIterator tuples, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if(fillFactor < 0.5 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		if(!td.equals(tuples.getTupleDesc())) {
+			throw new DbException("type mismatch, in bulkInsert");
+		}
+
+		OrderBy sorted = new OrderBy(keyField, true, tuples);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		long count = 0;
+		sorted.open();
+		try {
+			beginSmo(tid, dirtypages);
+			boolean done = false;
+			try {
+				Tuple next = sorted.hasNext() ? sorted.next() : null;
+				while(next != null) {
+					Field key = next.getField(keyField);
+
+					// use the root pointer page to locate the root page
+					BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+					BTreePageId pid = rootPtr.getRootId();
+					if(pid == null) { // the root has just been created, so set the root pointer to point to it
+						pid = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+						rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+						rootPtr.setRootId(pid);
+					}
+
+					// find the leaf page for the next tuple, along with the upper bound of
+					// the keys that page may hold, which is the last one found on the way down
+					Field bound = null;
+					while(pid.pgcateg() == BTreePageId.INTERNAL) {
+						BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+						Field upper = page.findChildUpperBound(key);
+						if(upper != null) {
+							bound = upper;
+						}
+						pid = page.getChildId(page.findChildSlot(key));
+					}
+					BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+					ArrayList<Tuple> old = new ArrayList<Tuple>();
+					Iterator<Tuple> it = page.iterator();
+					while(it.hasNext()) {
+						old.add(it.next());
+					}
+
+					// merge the tuples of the page with the batch tuples up to the bound, writing
+					// out a page whenever two pages' worth are pending. Space is counted in slots,
+					// or in bytes on prefix compressed pages, whose tuples differ in size; there,
+					// space counts the keys in full, and the prefix a page would have if it
+					// held all pending tuples is taken out, which is no longer than the prefix
+					// of any page they end up on
+					int room = page.getMaxTupleSpace(page.getLowFence(), page.getHighFence());
+					ArrayList<Tuple> pending = new ArrayList<Tuple>();
+					int space = 0;
+					int i = 0;
+					while(true) {
+						boolean fromBatch = next != null
+								&& (bound == null || next.getField(keyField).compare(LESS_THAN_OR_EQ, bound));
+						Tuple t;
+						if(i < old.size() && (!fromBatch
+								|| old.get(i).getField(keyField).compare(LESS_THAN_OR_EQ, next.getField(keyField)))) {
+							t = old.get(i++);
+						}
+						else if(fromBatch) {
+							t = next;
+							next = sorted.hasNext() ? sorted.next() : null;
+							count++;
+						}
+						else {
+							break;
+						}
+						pending.add(t);
+						space += page.getTupleSpace(t) + page.getPrefix().length();
+
+						if(pending.size() > 1
+								&& space - pending.size() * getPrefixLength(page, t.getField(keyField)) >= 2 * fillFactor * room) {
+							int[] sums = getSpaceSums(page, pending);
+							int n = countTuples(page, pending, sums, fillFactor);
+							page = addLeafPage(tid, dirtypages, page, pending.subList(0, n), pending.get(n).getField(keyField));
+							pending = new ArrayList<Tuple>(pending.subList(n, pending.size()));
+							space -= sums[n];
+							room = page.getMaxTupleSpace(page.getLowFence(), page.getHighFence());
+							releasePages(tid, dirtypages, page.getId());
+						}
+					}
+
+					// spread what is left over as few pages as it fits on, sized with the
+					// fences each page ends up with
+					int[] sums = getSpaceSums(page, pending);
+					while(getFill(page, sums, 0, pending.size(), page.getLowFence(), page.getHighFence()) > 1) {
+						int n = splitTuples(page, pending, sums, fillFactor);
+						page = addLeafPage(tid, dirtypages, page, pending.subList(0, n), pending.get(n).getField(keyField));
+						pending = new ArrayList<Tuple>(pending.subList(n, pending.size()));
+						sums = getSpaceSums(page, pending);
+					}
+					page.setTuples(pending);
+					releasePages(tid, dirtypages, null);
+				}
+				done = true;
+			} finally {
+				endSmo(tid, dirtypages, done, null);
+			}
+		} finally {
+			sorted.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the space the tuples ts take on page with their keys counted in full, as running
+	 * sums: the first i tuples take sums[i].
+	 * @see BTreeLeafPage#getTupleSpace(Tuple)
+	 */
+	private static int[] getSpaceSums(BTreeLeafPage page, List<Tuple> ts) {
+		int[] sums = new int[ts.size() + 1];
+		for(int i = 0; i < ts.size(); i++) {
+			sums[i + 1] = sums[i] + page.getTupleSpace(ts.get(i)) + page.getPrefix().length();
+		}
+		return sums;
+	}
+
+	/**
+	 * Returns the length of the prefix page would have if its high fence were key, which is
+	 * the prefix its low fence and key share, or 0 if the page is not prefix compressed.
+	 */
+	private static int getPrefixLength(BTreeLeafPage page, Field key) {
+		return page.isCompressed() ? BTreePage.commonPrefix(page.getLowFence(), key).length() : 0;
+	}
+
+	/**
+	 * Returns the fraction of a page like page that the tuples from up to to take, if the page
+	 * held only them and had the fence keys low and high.
+	 * @param sums - the space the tuples take, as returned by getSpaceSums
+	 * @see #getSpaceSums(BTreeLeafPage, List)
+	 */
+	private static double getFill(BTreeLeafPage page, int[] sums, int from, int to, Field low, Field high) {
+		int prefixLength = page.isCompressed() ? BTreePage.commonPrefix(low, high).length() : 0;
+		return (sums[to] - sums[from] - (to - from) * prefixLength) / (double) page.getMaxTupleSpace(low, high);
+	}
+
+	/**
+	 * Returns the high fence page gets if it holds the first n tuples of ts, which is the key
+	 * of the entry after it, or null if the page is not prefix compressed.
+	 */
+	private Field getFenceAfter(BTreeLeafPage page, List<Tuple> ts, int n) {
+		if(!page.isCompressed()) {
+			return null;
+		}
+		return getSeparator(ts.get(n - 1).getField(keyField), ts.get(n).getField(keyField));
+	}
+
+	/**
+	 * Count the tuples at the start of ts that fill page up to fillFactor, or the first tuple
+	 * if it takes more. At least one tuple is left over for the page after it. On a prefix
+	 * compressed page, the space each count takes is worked out with the high fence it gives
+	 * the page.
+	 * @param sums - the space the tuples take, as returned by getSpaceSums
+	 * @see #getSpaceSums(BTreeLeafPage, List)
+	 */
+	private int countTuples(BTreeLeafPage page, List<Tuple> ts, int[] sums, double fillFactor) {
+		int n = 1;
+		while(n + 2 <= ts.size()
+				&& getFill(page, sums, 0, n + 1, page.getLowFence(), getFenceAfter(page, ts, n + 1)) <= fillFactor) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Count the tuples at the start of ts to put on page when the tuples do not fit on it.
+	 * If they fit on two pages filled up to fillFactor, they are split so that the fuller of
+	 * the two is as empty as it can be; otherwise page is filled up to fillFactor.
+	 * @param sums - the space the tuples take, as returned by getSpaceSums
+	 * @see #countTuples(BTreeLeafPage, List, int[], double)
+	 */
+	private int splitTuples(BTreeLeafPage page, List<Tuple> ts, int[] sums, double fillFactor) {
+		int best = 0;
+		double bestFill = Double.MAX_VALUE;
+		for(int n = 1; n < ts.size(); n++) {
+			Field key = getFenceAfter(page, ts, n);
+			double fill = Math.max(getFill(page, sums, 0, n, page.getLowFence(), key),
+					getFill(page, sums, n, ts.size(), key, page.getHighFence()));
+			if(fill < bestFill) {
+				best = n;
+				bestFill = fill;
+			}
+		}
+		return bestFill <= fillFactor ? best : countTuples(page, ts, sums, fillFactor);
+	}
+
+	/**
+	 * Fill page with the given tuples during a bulk insert, and add an empty leaf page to its
+	 * right, with an entry for it in the parent. Update sibling pointers and parent pointers
+	 * as needed.
+	 *
+	 * The fences of a prefix compressed page are narrowed together with its tuples, before any
+	 * other page is read, since the buffer pool may write the page out at any read.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page to fill and add a page after
+	 * @param tuples - the tuples page is to hold, in sorted order
+	 * @param rightMin - the first key the new page will hold, which is the key of the entry
+	 * in the parent unless the file is prefix compressed
+	 * @return the new page
+	 * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
+	 * @see #getSeparator(Field, Field)
+	 */
+	private BTreeLeafPage addLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeLeafPage page, List<Tuple> tuples, Field rightMin)
+					throws DbException, IOException, TransactionAbortedException {
+		Field key = rightMin;
+		Field highFence = page.getHighFence();
+		if(page.isCompressed()) {
+			key = getSeparator(tuples.get(tuples.size() - 1).getField(keyField), rightMin);
+			page.setFences(page.getLowFence(), key);
+		}
+		page.setTuples(tuples);
+
+		BTreeLeafPage newLeafPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		if(page.isCompressed()) {
+			newLeafPage.setFences(key, highFence);
+		}
+
+		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parentPage.insertEntry(new BTreeEntry(key, page.getId(), newLeafPage.getId()));
+		newLeafPage.setParentId(parentPage.getId());
+		page.setParentId(parentPage.getId());
+
+		if(page.getRightSiblingId() != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, page.getRightSiblingId(),
+					Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(newLeafPage.getId());
+		}
+		newLeafPage.setRightSiblingId(page.getRightSiblingId());
+		newLeafPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newLeafPage.getId());
+		return newLeafPage;
+	}
+
+	/**
+	 * Hand the pages a bulk insert has changed to the buffer pool, marked dirty by tid, so that
+	 * they can be written out before tid commits.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages tid has locked with READ_WRITE permission
+	 * @param keep - the page that is still being filled, which is kept in dirtypages, or null
+	 */
+	private void releasePages(TransactionId tid, HashMap<PageId, Page> dirtypages, PageId keep)
+			throws DbException {
+		BufferPool bufferPool = Database.getBufferPool();
+		Iterator<Page> it = dirtypages.values().iterator();
+		while(it.hasNext()) {
+			Page p = it.next();
+			if(!p.getId().equals(keep)) {
+				p.markDirty(true, tid);
+				bufferPool.updatePage(p, tid);
+				it.remove();
+			}
+		}
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -978,12 +2007,24 @@ public class BTreeFile implements DbFile {
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
 		page.deleteTuple(t);
+		// marked now, so that an SMO below tells the tuple is gone for tid only, and
+		// aborting tid restores the page if the SMO fails to start
+		page.markDirty(true, tid);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
+		// or merge with one of the siblings. The pages of a B-link tree are left as
+		// they are, since readers rely on keys only ever moving right, and so are
+		// prefix compressed pages
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) {
-			handleMinOccupancyPage(tid, dirtypages, page);
+		if(page.getNumEmptySlots() > maxEmptySlots && !isBLink() && !isPrefixCompressed()) {
+			Set<PageId> heldBefore = beginSmo(tid, dirtypages, page.getLeftSiblingId(), pageId);
+			boolean done = false;
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+				done = true;
+			} finally {
+				endSmo(tid, dirtypages, done, heldBefore);
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1003,23 +2044,22 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private synchronized void createIfEmpty() throws IOException {
+		if(store.size() == 0) {
+			store.write(BTreeRootPtrPage.createEmptyPageData(newVersion), 0);
+			store.write(BTreeLeafPage.createEmptyPageData(newVersion == BTreeRootPtrPage.VERSION_PREFIX), pageOffset(1));
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1040,10 +2080,13 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
+			// a page tid has emptied and still holds locked is not reused, since its
+			// contents are restored from its before image if tid aborts
+			Set<PageId> held = Database.getBufferPool().getLockManager().getLockedPages(tid);
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			int headerPageCount = 0;
 			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
+			while(headerPage != null && getEmptySlot(headerPage, headerPageCount, held) == -1) {
 				headerId = headerPage.getNextPageId();
 				if(headerId != null) {
 					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
@@ -1057,7 +2100,7 @@ public class BTreeFile implements DbFile {
 			// if headerPage is not null, it must have an empty slot
 			if(headerPage != null) {
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
+				int emptySlot = getEmptySlot(headerPage, headerPageCount, held);
 				headerPage.markSlotUsed(emptySlot, true);
 				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
 			}
@@ -1068,18 +2111,39 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				emptyPageNo = numPages() + 1;
+				store.write(BTreeInternalPage.createEmptyPageData(), pageOffset(emptyPageNo));
 			}
 		}
 
 		return emptyPageNo;
 	}
 
+	/**
+	 * Get the first empty slot of a header page whose page tid does not hold a lock on.
+	 *
+	 * @param headerPage - the header page
+	 * @param headerPageCount - the number of header pages before it
+	 * @param held - the pages tid holds locks on
+	 * @return the index of the slot, or -1 if there is none
+	 */
+	private int getEmptySlot(BTreeHeaderPage headerPage, int headerPageCount, Set<PageId> held) {
+		int emptySlot = headerPage.getEmptySlot();
+		if(emptySlot == -1) {
+			return -1;
+		}
+		for(int i = emptySlot; i < BTreeHeaderPage.getNumSlots(); i++) {
+			int pageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + i;
+			if(!headerPage.isSlotUsed(i)
+					&& !held.contains(new BTreePageId(tableid, pageNo, BTreePageId.LEAF))
+					&& !held.contains(new BTreePageId(tableid, pageNo, BTreePageId.INTERNAL))
+					&& !held.contains(new BTreePageId(tableid, pageNo, BTreePageId.HEADER))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
 	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and
@@ -1103,10 +2167,15 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		if(pgcateg == BTreePageId.INTERNAL) {
+			store.write(BTreeInternalPage.createEmptyPageData(isBLink(), isPrefixCompressed()), pageOffset(emptyPageNo));
+		}
+		else if(pgcateg == BTreePageId.LEAF) {
+			store.write(BTreeLeafPage.createEmptyPageData(isPrefixCompressed()), pageOffset(emptyPageNo));
+		}
+		else {
+			store.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
+		}
 
 		// make sure the page is not in the buffer pool	or in the local cache
 		Database.getBufferPool().discardPage(newPageId);
@@ -1254,10 +2323,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPageForRead(tid, null);
 		it = curp.iterator();
 	}
 
@@ -1339,17 +2405,17 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPageForRead(tid, ipred.getField());
+			// start at the first tuple that can match instead of scanning up to it
+			it = curp.iterator(ipred.getOp() == Op.GREATER_THAN ? curp.findSlotAfter(ipred.getField())
+					: curp.findSlot(ipred.getField()));
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPageForRead(tid, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -156,6 +156,28 @@ public class BTreeFileEncoder {
 			File bFile, int npagebytes,
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
+		return convert(tuples, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator, keyField,
+				BTreeRootPtrPage.VERSION_BPLUS);
+	}
+
+	/**
+	 * Faster method to encode the B+ tree file with the given layout version
+	 * 
+	 * @param tuples - list of tuples to add to the file
+	 * @param hFile - the file to temporarily store the data as a heap file on disk
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param version - BTreeRootPtrPage.VERSION_BPLUS or BTreeRootPtrPage.VERSION_BLINK
+	 * @return the BTreeFile
+	 */
+	public static BTreeFile convert(ArrayList<ArrayList<Integer>> tuples, File hFile, 
+			File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int keyField, int version) 
+					throws IOException, DbException, TransactionAbortedException {
 		File tempInput = File.createTempFile("tempTable", ".txt");
 		tempInput.deleteOnExit();
 		BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
@@ -177,7 +199,7 @@ public class BTreeFileEncoder {
 		}
 		bw.close();
 		return convert(tempInput, hFile, bFile, npagebytes,
-				numFields, typeAr, fieldSeparator, keyField);
+				numFields, typeAr, fieldSeparator, keyField, version);
 	}
 
 	/** 
@@ -199,6 +221,37 @@ public class BTreeFileEncoder {
 	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
+		return convert(inFile, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator, keyField,
+				BTreeRootPtrPage.VERSION_BPLUS);
+	}
+
+	/** 
+	 * Faster method to encode the B+ tree file with the given layout version. A B-link
+	 * file also gets the high keys and right sibling pointers of its internal pages.
+	 * 
+	 * @param inFile - the file containing the raw data
+	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
+	 * @param bFile - the data file for the BTreeFile
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param version - BTreeRootPtrPage.VERSION_BPLUS or BTreeRootPtrPage.VERSION_BLINK
+	 * @return the B+ tree file
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int keyField, int version) 
+					throws IOException, DbException, TransactionAbortedException {
+		// the heap file is read with integer fields only, and only string keys are
+		// prefix compressed; such files are filled with BTreeFile.bulkInsert instead
+		if (version == BTreeRootPtrPage.VERSION_PREFIX) {
+			throw new IllegalArgumentException("the encoder does not write prefix compressed files");
+		}
+		boolean blink = (version == BTreeRootPtrPage.VERSION_BLINK);
 		// convert the inFile to HeapFile first.
 		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
@@ -231,13 +284,17 @@ public class BTreeFileEncoder {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// B-link pages: right sibling pointer, high key flag, high key
+		if(blink) {
+			internalpointerbytes += BTreeInternalPage.INDEX_SIZE + 1 + keyType.getLen();
+		}
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
 		// first add some bytes for the root pointer page
 		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), 
-				BTreeRootPtrPage.createEmptyPageData()));
+				BTreeRootPtrPage.createEmptyPageData(version)));
 
 		// next iterate through all the tuples and write out leaf pages
 		// and internal pages as they fill up.
@@ -266,7 +323,7 @@ public class BTreeFileEncoder {
 				// update the parent by "copying up" the next key
 				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
 				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keyType, tableid, keyField, blink);
 
 				page1 = page2;
 				page2 = new ArrayList<Tuple>();
@@ -315,21 +372,24 @@ public class BTreeFileEncoder {
 			// update the parent by "copying up" the next key
 			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
 			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-					keyType, tableid, keyField);
+					keyType, tableid, keyField, blink);
 		}
 
 		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
+		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField, blink);
 
 		// update the root pointer to point to the last page of the file
 		int root = bf.numPages();
 		int rootCategory = (root > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
-		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
+		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0, version);
 		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
 
 		// set all the parent and sibling pointers
 		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
 		setRightSiblingPtrs(bf, lastPid, null);
+		if(blink) {
+			setBLinkPtrs(bf, new BTreePageId(tableid, root, rootCategory));
+		}
 
 		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 		return bf;
@@ -355,6 +415,63 @@ public class BTreeFileEncoder {
 		}
 	}
 
+	/**
+	 * Set the high keys and right sibling pointers of the internal pages of a B-link file
+	 * 
+	 * @param bf - the BTreeFile
+	 * @param root - the id of the root page
+	 * @throws IOException
+	 * @throws DbException
+	 */
+	private static void setBLinkPtrs(BTreeFile bf, BTreePageId root) 
+			throws IOException, DbException {
+		ArrayList<ArrayList<BTreePageId>> levels = new ArrayList<ArrayList<BTreePageId>>();
+		HashMap<BTreePageId, Field> highKeys = new HashMap<BTreePageId, Field>();
+		collectLevels(bf, root, null, 0, levels, highKeys);
+		for(ArrayList<BTreePageId> level : levels) {
+			for(int i = 0; i < level.size(); i++) {
+				BTreeInternalPage page = (BTreeInternalPage) bf.readPage(level.get(i));
+				page.setHighKey(highKeys.get(level.get(i)));
+				page.setRightSiblingId(i + 1 < level.size() ? level.get(i + 1) : null);
+				bf.writePage(page);
+			}
+		}
+	}
+
+	/**
+	 * Recursive function to list the internal pages of each level from left to right,
+	 * along with the upper bound of the keys in their subtrees
+	 * 
+	 * @param bf - the BTreeFile
+	 * @param pid - the id of the page to visit
+	 * @param upperBound - the upper bound of the keys in the page's subtree, or null if none
+	 * @param depth - the depth of the page
+	 * @param levels - the internal pages of each level
+	 * @param highKeys - the upper bound of each internal page
+	 */
+	private static void collectLevels(BTreeFile bf, BTreePageId pid, Field upperBound, int depth,
+			ArrayList<ArrayList<BTreePageId>> levels, HashMap<BTreePageId, Field> highKeys) {
+		if(pid.pgcateg() != BTreePageId.INTERNAL) {
+			return;
+		}
+		while(levels.size() <= depth) {
+			levels.add(new ArrayList<BTreePageId>());
+		}
+		levels.get(depth).add(pid);
+		highKeys.put(pid, upperBound);
+
+		BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			collectLevels(bf, e.getLeftChild(), e.getKey(), depth + 1, levels, highKeys);
+		}
+		if(e != null) {
+			collectLevels(bf, e.getRightChild(), upperBound, depth + 1, levels, highKeys);
+		}
+	}
+
 	/**
 	 * Recursive function to set all the parent pointers
 	 * 
@@ -398,11 +515,12 @@ public class BTreeFileEncoder {
 	 * @param keyType - the type of the key field
 	 * @param tableid - the table id of this BTreeFile
 	 * @param keyField - the index of the key field
+	 * @param blink - whether to write pages with the B-link layout
 	 * @throws IOException
 	 */
 	private static void cleanUpEntries(ArrayList<ArrayList<BTreeEntry>> entries,
 			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
-			int keyField) throws IOException {
+			int keyField, boolean blink) throws IOException {
 		// As with the leaf pages, there are two options:
 		// 1. We have less than or equal to a full page of entries. Because of the way the code
 		//    was written, we know this must be the root page
@@ -415,7 +533,7 @@ public class BTreeFileEncoder {
 			int size = entries.get(i).size();
 			if(size <= nentries) {
 				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
+				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory, blink);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
 				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
 			}
@@ -427,18 +545,18 @@ public class BTreeFileEncoder {
 				lastPg.addAll(entries.get(i).subList(size/2 + 1, size));
 
 				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
+				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory, blink);
 				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
 				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
 
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
+				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory, blink);
 				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
 				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
 
 				// update the parent by "pushing up" the next key
 				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
 				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keyType, tableid, keyField, blink);
 			}
 
 		}
@@ -456,11 +574,12 @@ public class BTreeFileEncoder {
 	 * @param keyType - the type of the key field
 	 * @param tableid - the table id of this BTreeFile
 	 * @param keyField - the index of the key field
+	 * @param blink - whether to write pages with the B-link layout
 	 * @throws IOException
 	 */
 	private static void updateEntries(ArrayList<ArrayList<BTreeEntry>> entries, 
 			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
-			int tableid, int keyField) throws IOException {
+			int tableid, int keyField, boolean blink) throws IOException {
 		while(entries.size() <= level) {
 			entries.add(new ArrayList<BTreeEntry>());
 		}
@@ -475,14 +594,14 @@ public class BTreeFileEncoder {
 				// write out a page of entries
 				ArrayList<BTreeEntry> pageEntries = new ArrayList<BTreeEntry>();
 				pageEntries.addAll(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
+				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory, blink);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
 				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
 
 				// update the parent by "pushing up" the next key
 				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
 				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keyType, tableid, keyField, blink);
 				ArrayList<BTreeEntry> remainingEntries = new ArrayList<BTreeEntry>();
 				remainingEntries.addAll(entries.get(level).subList(nentries+1, size));
 				entries.get(level).clear();
@@ -624,9 +743,32 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		return convertToInternalPage(entries, npagebytes, keyType, childPageCategory, false);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage,
+	 * with the B-link layout if blink is true. The high key and right sibling pointer
+	 * are left empty.
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keyType - the type of the key field
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @param blink - whether to use the B-link layout
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			Type keyType, int childPageCategory, boolean blink)
+					throws IOException {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// B-link pages: right sibling pointer, high key flag, high key
+		if(blink) {
+			pointerbytes += BTreeInternalPage.INDEX_SIZE + 1 + keyType.getLen();
+		}
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		//  per entry, we need one bit; there are nentries per page, so we need
@@ -649,7 +791,17 @@ public class BTreeFileEncoder {
 			entrycount = nentries;
 
 		dos.writeInt(0); // parent pointer
-		dos.writeByte((byte) childPageCategory);
+		if(blink) {
+			dos.writeByte((byte) (childPageCategory | BTreeInternalPage.BLINK_FLAG));
+			dos.writeInt(0); // right sibling pointer
+			dos.writeByte(0); // no high key
+			for (int j=0; j<keyType.getLen(); j++) {
+				dos.writeByte(0);
+			}
+		}
+		else {
+			dos.writeByte((byte) childPageCategory);
+		}
 
 		int i = 0;
 		byte headerbyte = 0;
@@ -708,12 +860,28 @@ public class BTreeFileEncoder {
 	 */
 	public static byte[] convertToRootPtrPage(int root, int rootCategory, int header)
 			throws IOException {
+		return convertToRootPtrPage(root, rootCategory, header, BTreeRootPtrPage.VERSION_BPLUS);
+	}
+
+	/**
+	 * Create a byte array in the format of a BTreeRootPtrPage of a file with the given
+	 * layout version
+	 * 
+	 * @param root - the page number of the root page
+	 * @param rootCategory - the category of the root page (leaf or internal)
+	 * @param header - the page number of the first header page
+	 * @param version - BTreeRootPtrPage.VERSION_BPLUS or BTreeRootPtrPage.VERSION_BLINK
+	 * @return a byte array which can be passed to the BTreeRootPtrPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToRootPtrPage(int root, int rootCategory, int header, int version)
+			throws IOException {
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(BTreeRootPtrPage.getPageSize());
 		DataOutputStream dos = new DataOutputStream(baos);
 
 		dos.writeInt(root); // root pointer
-		dos.writeByte((byte) rootCategory); // root page category
+		dos.writeByte((byte) (version << 4 | rootCategory)); // layout version and root page category
 
 		dos.writeInt(header); // header pointer
 
@@ -21,6 +21,20 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// B-link layout: the page number of the right sibling or 0, and the
+	// largest key of this subtree or null on the right-most page of a level
+	private final boolean blink;
+	private int rightSibling;
+	private Field highKey;
+
+	/** set in the child category byte of pages with the B-link layout */
+	protected final static int BLINK_FLAG = 0x80;
+
+	// the used key slots in key order, rebuilt after the header changes and
+	// null while it is stale; it is replaced rather than updated in place,
+	// so that threads sharing the page never see a half-built list
+	private volatile int usedSlots[];
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -36,6 +50,11 @@ public class BTreeInternalPage extends BTreePage {
 			assert(prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
+		if (compressed) {
+			assert (checkFences(lowerBound, upperBound));
+			assert (getFreeBytes() >= 0);
+		}
+
 		if (checkOccupancy && depth > 0) {
 			assert (getNumEntries() >= getMaxEntries() / 2);
 		}
@@ -57,6 +76,18 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A page of a B-link tree has the top bit of the child category byte set,
+	 * and the category byte is followed by a pointer to its right sibling, a
+	 * byte that is 1 if the page has a high key, and the high key. These are
+	 * extra bytes too, so such a page holds fewer entries.
+	 * <p>
+	 * A page with the prefix compressed layout has the top bit of the parent
+	 * pointer set, and the child category byte is followed by the fence keys of
+	 * the page. Only the used slots are written, one after the other, each with
+	 * its key as a length byte and the characters after the prefix the fence keys
+	 * share, and its child pointer, so the page holds as many entries as fit in
+	 * its bytes. The number of slots is worked out as above with the smallest
+	 * size of an entry, a length byte and a child pointer.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,20 +97,37 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		super(id, key, isCompressed(data));
+		this.blink = (data[INDEX_SIZE] & BLINK_FLAG) != 0;
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
+			this.parent = ((IntField) f).getValue() & ~PREFIX_FLAG;
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 		}
 
 		// read the child page category
-		childCategory = (int) dis.readByte();
+		childCategory = dis.readUnsignedByte() & ~BLINK_FLAG;
+
+		// read the right sibling pointer and the high key
+		if (blink) {
+			rightSibling = dis.readInt();
+			boolean hasHighKey = dis.readByte() != 0;
+			try {
+				Field f = td.getFieldType(keyField).parse(dis);
+				highKey = hasHighKey ? f : null;
+			} catch (java.text.ParseException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// read the fence keys, which give the prefix of the keys
+		if (compressed)
+			readFences(dis);
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
@@ -87,24 +135,29 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		if (compressed) {
+			readCompressedEntries(dis);
 		}
+		else {
+			try{
+				// allocate and read the keys of this page
+				// start from 1 because the first key slot is not used
+				// since a node with m keys has m+1 pointers
+				keys[0] = null;
+				for (int i=1; i<keys.length; i++)
+					keys[i] = readNextKey(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+			try{
+				// allocate and read the child pointers of this page
+				for (int i=0; i<children.length; i++)
+					children[i] = readNextChild(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -120,6 +173,15 @@ public class BTreeInternalPage extends BTreePage {
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		// a B-link page also has a right sibling pointer and a high key
+		if (blink)
+			extraBits += (INDEX_SIZE + 1 + keySize) * 8;
+		// a prefix compressed page also has two fence keys, and its slots are
+		// counted with the smallest entry, whose key is the prefix of the page
+		if (compressed) {
+			bitsPerEntryIncludingHeader = (1 + INDEX_SIZE) * 8 + 1;
+			extraBits += 2 * 8;
+		}
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
@@ -220,6 +282,23 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the keys and child pointers of a prefix compressed page, on which only
+	 * the used slots are written.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			// the first key slot is not used, since a node with m keys has m+1 pointers
+			if (i > 0)
+				keys[i] = readKey(dis);
+			children[i] = dis.readInt();
+		}
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -238,7 +317,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// write out the parent pointer
 		try {
-			dos.writeInt(parent);
+			dos.writeInt(compressed ? parent | PREFIX_FLAG : parent);
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -246,12 +325,35 @@ public class BTreeInternalPage extends BTreePage {
 
 		// write out the child page category
 		try {
-			dos.writeByte((byte) childCategory);
+			dos.writeByte((byte) (blink ? childCategory | BLINK_FLAG : childCategory));
 
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
+		// write out the right sibling pointer and the high key
+		if (blink) {
+			try {
+				dos.writeInt(rightSibling);
+				dos.writeByte(highKey == null ? 0 : 1);
+				if (highKey == null)
+					dos.write(new byte[td.getFieldType(keyField).getLen()]);
+				else
+					highKey.serialize(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// write out the fence keys
+		if (compressed) {
+			try {
+				writeFences(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -262,6 +364,25 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		// a prefix compressed page only has the used slots, each with its
+		// key and child pointer
+		if (compressed) {
+			try {
+				for (int i=0; i<numSlots; i++) {
+					if (!isSlotUsed(i))
+						continue;
+					if (i > 0)
+						writeKey(dos, keys[i]);
+					dos.writeInt(children[i]);
+				}
+				dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -269,13 +390,10 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
+				try {
+					dos.write(new byte[td.getFieldType(keyField).getLen()]);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 				continue;
 			}
@@ -294,13 +412,10 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
+				try {
+					dos.write(new byte[INDEX_SIZE]);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 				continue;
 			}
@@ -317,6 +432,8 @@ public class BTreeInternalPage extends BTreePage {
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
 				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		if (blink)
+			zerolen -= INDEX_SIZE + 1 + td.getFieldType(keyField).getLen();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -409,6 +526,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to update null entry.");
+		if (compressed && keySize(e.getKey()) - keySize(keys[rid.tupleno()]) > getFreeBytes())
+			throw new DbException("tried to update entry with a key that does not fit on the page.");
 		
 		for(int i = rid.tupleno() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -457,7 +576,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(countEmptySlots() == getMaxEntries()) {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
 			keys[1] = e.getKey();
@@ -478,6 +597,8 @@ public class BTreeInternalPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
+		if (compressed && keySize(e.getKey()) + INDEX_SIZE > getFreeBytes())
+			throw new DbException("called insertEntry on page with no room for the entry.");
 
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
@@ -558,17 +679,135 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * @return true if this page has the B-link layout, with a right sibling pointer
+	 * and a high key
+	 */
+	public boolean isBLink() {
+		return blink;
+	}
+
+	/**
+	 * Get the id of the right sibling of this page
+	 * @return the id of the right sibling, or null if there is none or this page does
+	 * not have the B-link layout
+	 */
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id
+	 * @throws DbException if the id is not valid or this page does not have the B-link layout
+	 */
+	public void setRightSiblingId(BTreePageId id) throws DbException {
+		if(!blink) {
+			throw new DbException("only B-link pages have a right sibling");
+		}
+		if(id == null) {
+			rightSibling = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSiblingId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			rightSibling = id.pageNumber();
+		}
+	}
+
+	/**
+	 * Get the high key of this page, the upper bound of the keys in its subtree.
+	 * A search for a larger key must move on to the right sibling.
+	 * @return the high key, or null if this is the right-most page of its level or
+	 * this page does not have the B-link layout
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param f - the new high key, or null for the right-most page of a level
+	 * @throws DbException if the key has the wrong type or this page does not have
+	 * the B-link layout
+	 */
+	public void setHighKey(Field f) throws DbException {
+		if(!blink) {
+			throw new DbException("only B-link pages have a high key");
+		}
+		if(f != null && f.getType() != td.getFieldType(keyField)) {
+			throw new DbException("key field type mismatch in setHighKey");
+		}
+		highKey = f;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeInternalPage with the B-link layout if blink is true.
+	 * @see BTreePage#createEmptyPageData()
+	 */
+	public static byte[] createEmptyPageData(boolean blink) {
+		byte[] data = createEmptyPageData();
+		if(blink)
+			data[INDEX_SIZE] = (byte) BLINK_FLAG;
+		return data;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeInternalPage with the B-link layout if blink is true, and the prefix
+	 * compressed layout if compressed is true.
+	 * @see BTreePage#createEmptyPageData()
+	 */
+	public static byte[] createEmptyPageData(boolean blink, boolean compressed) {
+		byte[] data = createEmptyPageData(blink);
+		if(compressed)
+			setCompressed(data);
+		return data;
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - countEmptySlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a prefix compressed page,
+	 * this is at most the number of the largest entries that fit in its free bytes,
+	 * so that any entry fits on a page with an empty slot.
 	 */
 	public int getNumEmptySlots() {
+		int cnt = countEmptySlots();
+		if (compressed)
+			cnt = Math.min(cnt, getFreeBytes() / (maxKeySize() + INDEX_SIZE));
+		return cnt;
+	}
+
+	/**
+	 * Returns the number of bytes not in use on this prefix compressed page
+	 */
+	private int getFreeBytes() {
+		int used = INDEX_SIZE + 1 + fenceSize() + header.length;
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				used += INDEX_SIZE + (i > 0 ? keySize(keys[i]) : 0);
+		}
+		return BufferPool.getPageSize() - used;
+	}
+
+	/**
+	 * Returns the number of key slots on this page that are not in use
+	 */
+	private int countEmptySlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -595,12 +834,79 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		usedSlots = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Find the child to descend to in search of the key f, by binary search
+	 * over the keys of this page. This is the left child of the first key
+	 * greater than or equal to f, or the right-most child if there is no
+	 * such key, so that the search reaches the left-most leaf possibly
+	 * containing f.
+	 * @param f - the key to search for, or null to find the left-most child
+	 * @return the slot of the child; see {@link #getChildId(int)}
+	 */
+	public int findChildSlot(Field f) {
+		int[] used = usedSlots;
+		if(used == null)
+			used = indexSlots();
+		if(f == null || used.length == 0)
+			return 0;
+		int lo = searchKeys(used, f);
+		// the child left of key lo is the right child of the key before it
+		return lo == 0 ? 0 : used[lo - 1];
+	}
+
+	/**
+	 * Find the first key greater than or equal to f, which is the upper bound
+	 * of the keys in the child {@link #findChildSlot(Field)} returns.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the key, or null if the child is the right-most one
+	 */
+	public Field findChildUpperBound(Field f) {
+		int[] used = usedSlots;
+		if(used == null)
+			used = indexSlots();
+		int lo = f == null ? 0 : searchKeys(used, f);
+		return lo < used.length ? keys[used[lo]] : null;
+	}
+
+	/**
+	 * Binary search the used key slots for the first key greater than or
+	 * equal to f
+	 * @return the index into used of that key, or used.length if there is none
+	 */
+	private int searchKeys(int[] used, Field f) {
+		int lo = 0;
+		int hi = used.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[used[mid]].compare(Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * List the used key slots, which hold the keys in sorted order
+	 */
+	private int[] indexSlots() {
+		int[] used = new int[numSlots];
+		int n = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				used[n++] = i;
+		used = Arrays.copyOf(used, n);
+		usedSlots = used;
+		return used;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Short-term page latches of a BTreeFile, separate from the transactional
+ * page locks taken through the BufferPool.
+ * <p>
+ * A latch protects the in-memory copy of a page while it is being read or
+ * changed, and is held only for that long. Inserts descend the tree under
+ * read latches without locking the internal pages: each child is latched
+ * before its parent's latch is released (latch crabbing), and a latch that
+ * is not free is not waited for, so a reader never blocks while holding a
+ * latch. A structure modification (SMO), i.e. a split, merge or
+ * redistribution, write-latches each page it locks for writing, and keeps
+ * those latches until the SMO is done. Most SMOs then end as nested top
+ * actions and unlock the pages they changed; the pages that hold uncommitted
+ * tuples of the transaction stay locked until it ends, since undo restores
+ * whole pages.
+ * <p>
+ * Every SMO bumps a counter when it starts, so that a descent can tell
+ * whether the path it followed may have changed since.
+ *
+ * @Threadsafe
+ */
+class BTreeLatches {
+
+	/** page number -> latch */
+	private final ConcurrentHashMap<Integer, ReentrantReadWriteLock> latches = new ConcurrentHashMap<>();
+	/** write latches held by the SMO each transaction is running */
+	private final ConcurrentHashMap<TransactionId, ArrayList<ReentrantReadWriteLock>> smoLatches = new ConcurrentHashMap<>();
+	private final AtomicLong smoCount = new AtomicLong();
+
+	private ReentrantReadWriteLock latch(BTreePageId pid) {
+		ReentrantReadWriteLock latch = latches.get(pid.pageNumber());
+		if (latch == null) {
+			latch = latches.computeIfAbsent(pid.pageNumber(), k -> new ReentrantReadWriteLock());
+		}
+		return latch;
+	}
+
+	/**
+	 * Read-latch a page if no SMO holds it.
+	 *
+	 * @return the latch to unlock once the page has been read, or null if
+	 * the page is write-latched
+	 */
+	ReentrantReadWriteLock.ReadLock tryReadLatch(BTreePageId pid) {
+		ReentrantReadWriteLock.ReadLock latch = latch(pid).readLock();
+		return latch.tryLock() ? latch : null;
+	}
+
+	/** Return the number of SMOs started so far. */
+	long smoCount() {
+		return smoCount.get();
+	}
+
+	/**
+	 * Start an SMO for tid. From now on each page tid fetches for writing is
+	 * write-latched until {@link #endSmo(TransactionId)}.
+	 */
+	void beginSmo(TransactionId tid) {
+		smoLatches.putIfAbsent(tid, new ArrayList<ReentrantReadWriteLock>());
+		smoCount.incrementAndGet();
+	}
+
+	/**
+	 * Write-latch a page if tid is running an SMO. The caller must hold an
+	 * exclusive lock on the page, so the only latches it can wait for are
+	 * those of readers, which never block.
+	 */
+	void writeLatch(TransactionId tid, BTreePageId pid) {
+		ArrayList<ReentrantReadWriteLock> held = smoLatches.get(tid);
+		if (held == null) {
+			return;
+		}
+		ReentrantReadWriteLock latch = latch(pid);
+		if (!latch.isWriteLockedByCurrentThread()) {
+			latch.writeLock().lock();
+			held.add(latch);
+		}
+	}
+
+	/** End the SMO of tid, releasing its write latches. */
+	void endSmo(TransactionId tid) {
+		ArrayList<ReentrantReadWriteLock> held = smoLatches.remove(tid);
+		if (held != null) {
+			for (ReentrantReadWriteLock latch : held) {
+				latch.writeLock().unlock();
+			}
+		}
+	}
+}
@@ -19,6 +19,11 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// the used slots in key order, rebuilt after the header changes and
+	// null while it is stale; it is replaced rather than updated in place,
+	// so that threads sharing the page never see a half-built list
+	private volatile int usedSlots[];
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -35,6 +40,11 @@ public class BTreeLeafPage extends BTreePage {
 			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
+		if (compressed) {
+			assert(checkFences(lowerBound, upperBound));
+			assert(getFreeBytes() >= 0);
+		}
+
 		if (checkoccupancy && depth > 0) {
 			assert(getNumTuples() >= getMaxTuples()/2);
 		}
@@ -53,6 +63,13 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * A page with the prefix compressed layout has the top bit of the parent
+	 * pointer set, and the sibling pointers are followed by the fence keys of
+	 * the page. Only the used slots are written, one after the other, and the
+	 * key of each tuple is written as a length byte and the characters after the
+	 * prefix the fence keys share, so the page holds as many tuples as fit in
+	 * its bytes. The number of slots is worked out as above with the smallest
+	 * size of a tuple, a length byte and the other fields.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -62,14 +79,14 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		super(id, key, isCompressed(data));
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
+			this.parent = ((IntField) f).getValue() & ~PREFIX_FLAG;
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 		}
@@ -88,6 +105,10 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// read the fence keys, which give the prefix of the keys
+		if (compressed)
+			readFences(dis);
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -97,7 +118,7 @@ public class BTreeLeafPage extends BTreePage {
 		try{
 			// allocate and read the actual records of this page
 			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
+				tuples[i] = compressed ? readCompressedTuple(dis,i) : readNextTuple(dis,i);
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
@@ -113,6 +134,12 @@ public class BTreeLeafPage extends BTreePage {
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8; 
+		// a prefix compressed page also has two fence keys, and its slots are
+		// counted with the smallest tuple, whose key is the prefix of the page
+		if (compressed) {
+			bitsPerTupleIncludingHeader = (getOtherFieldsSize() + 1) * 8 + 1;
+			extraBits += 2 * 8;
+		}
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -187,6 +214,34 @@ public class BTreeLeafPage extends BTreePage {
 		return t;
 	}
 
+	/**
+	 * Read tuples from the source file of a prefix compressed page, on which only
+	 * the used slots are written.
+	 */
+	private Tuple readCompressedTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		if (!isSlotUsed(slotId))
+			return null;
+
+		// read the key, then the other fields in the tuple
+		Tuple t = new Tuple(td);
+		RecordId rid = new RecordId(pid, slotId);
+		t.setRecordId(rid);
+		try {
+			t.setField(keyField, readKey(dis));
+			for (int j=0; j<td.numFields(); j++) {
+				if (j != keyField)
+					t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (IOException e) {
+			throw new NoSuchElementException("error reading tuple");
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -205,7 +260,7 @@ public class BTreeLeafPage extends BTreePage {
 
 		// write out the parent and sibling pointers
 		try {
-			dos.writeInt(parent);
+			dos.writeInt(compressed ? parent | PREFIX_FLAG : parent);
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -223,6 +278,15 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the fence keys
+		if (compressed) {
+			try {
+				writeFences(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -236,15 +300,29 @@ public class BTreeLeafPage extends BTreePage {
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
+			// a prefix compressed page only has the used slots, each with its
+			// key first
+			if (compressed) {
+				if (isSlotUsed(i)) {
 					try {
-						dos.writeByte(0);
+						writeKey(dos, tuples[i].getField(keyField));
+						for (int j=0; j<td.numFields(); j++) {
+							if (j != keyField)
+								tuples[i].getField(j).serialize(dos);
+						}
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
+				}
+				continue;
+			}
 
+			// empty slot
+			if (!isSlotUsed(i)) {
+				try {
+					dos.write(new byte[td.getSize()]);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 				continue;
 			}
@@ -263,6 +341,8 @@ public class BTreeLeafPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		if (compressed) // the tuples take as many bytes as their keys need
+			zerolen = BufferPool.getPageSize() - dos.size();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -321,18 +401,13 @@ public class BTreeLeafPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
+		if (compressed && getTupleSpace(t) > getFreeBytes())
+			throw new DbException("called addTuple on page with no room for the tuple.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int[] used = usedSlots();
+		int above = search(used, t.getField(keyField), false);
+		int lessOrEqKey = above == 0 ? -1 : used[above - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -358,6 +433,41 @@ public class BTreeLeafPage extends BTreePage {
 		tuples[goodSlot] = t;
 	}
 
+	/**
+	 * Replace the tuples on this page with the specified tuples, which must be in
+	 * sorted order. Unlike insertTuple, this does not search for the slot of each
+	 * tuple, so it is used to fill pages in bulk.
+	 * @throws DbException if the tuples do not fit on the page or tupledesc
+	 *         is mismatch.
+	 * @param ts The tuples to store, in sorted order.
+	 */
+	public void setTuples(List<Tuple> ts) throws DbException {
+		if (ts.size() > numSlots)
+			throw new DbException("called setTuples with more tuples than slots.");
+		int space = 0;
+		for (Tuple t : ts) {
+			if (!t.getTupleDesc().equals(td))
+				throw new DbException("type mismatch, in setTuples");
+			space += getTupleSpace(t);
+		}
+		if (compressed && space > getFreeBytes() + getUsedTupleSpace())
+			throw new DbException("called setTuples with more tuples than fit on the page.");
+
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				tuples[i].setRecordId(null);
+				markSlotUsed(i, false);
+			}
+			tuples[i] = null;
+		}
+		for (int i=0; i<ts.size(); i++) {
+			Tuple t = ts.get(i);
+			markSlotUsed(i, true);
+			t.setRecordId(new RecordId(pid, i));
+			tuples[i] = t;
+		}
+	}
+
 	/**
 	 * Move a record from one slot to another slot, and update the corresponding
 	 * headers and RecordId
@@ -438,13 +548,25 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		return numSlots - countEmptySlots();
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a prefix compressed page,
+	 * this is at most the number of the largest tuples that fit in its free bytes,
+	 * so that any tuple fits on a page with an empty slot.
 	 */
 	public int getNumEmptySlots() {
+		int cnt = countEmptySlots();
+		if (compressed)
+			cnt = Math.min(cnt, getFreeBytes() / (maxKeySize() + getOtherFieldsSize()));
+		return cnt;
+	}
+
+	/**
+	 * Returns the number of slots on this page that are not in use
+	 */
+	private int countEmptySlots() {
 		int cnt = 0;
 		for(int i=0; i<numSlots; i++)
 			if(!isSlotUsed(i))
@@ -452,6 +574,66 @@ public class BTreeLeafPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * Returns the space the tuple t would take on this page: a slot, or the
+	 * number of bytes it takes on a prefix compressed page, which depends on
+	 * the length of its key
+	 * @see #getMaxTupleSpace(Field, Field)
+	 */
+	public int getTupleSpace(Tuple t) {
+		if (!compressed)
+			return 1;
+		return keySize(t.getField(keyField)) + getOtherFieldsSize();
+	}
+
+	/**
+	 * Returns the space the tuples of a page may take, in the units of
+	 * getTupleSpace, if the page had the fence keys low and high. Without the
+	 * prefix compressed layout, this is the number of slots.
+	 * @see #getTupleSpace(Tuple)
+	 */
+	public int getMaxTupleSpace(Field low, Field high) {
+		if (!compressed)
+			return numSlots;
+		return BufferPool.getPageSize() - 3 * INDEX_SIZE - fenceSize(low, high) - header.length;
+	}
+
+	/**
+	 * Returns the space the tuples on this page take, in the units of getTupleSpace
+	 */
+	private int getUsedTupleSpace() {
+		int space = 0;
+		for (int i : usedSlots())
+			space += getTupleSpace(tuples[i]);
+		return space;
+	}
+
+	/**
+	 * Returns the number of bytes not in use on this prefix compressed page
+	 */
+	private int getFreeBytes() {
+		return BufferPool.getPageSize() - 3 * INDEX_SIZE - fenceSize() - header.length - getUsedTupleSpace();
+	}
+
+	/**
+	 * Returns the number of bytes the fields of a tuple other than its key take
+	 */
+	private int getOtherFieldsSize() {
+		return td.getSize() - td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeLeafPage with the prefix compressed layout if compressed is true.
+	 * @see BTreePage#createEmptyPageData()
+	 */
+	public static byte[] createEmptyPageData(boolean compressed) {
+		byte[] data = createEmptyPageData();
+		if(compressed)
+			setCompressed(data);
+		return data;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -469,12 +651,73 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		usedSlots = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Find the first tuple on this page whose key is greater than or equal
+	 * to f, by binary search over the keys.
+	 * @param f - the key to search for
+	 * @return the slot of the tuple, or getMaxTuples() if there is none
+	 */
+	public int findSlot(Field f) {
+		int[] used = usedSlots();
+		int i = search(used, f, true);
+		return i < used.length ? used[i] : numSlots;
+	}
+
+	/**
+	 * Find the first tuple on this page whose key is greater than f, by
+	 * binary search over the keys.
+	 * @param f - the key to search for
+	 * @return the slot of the tuple, or getMaxTuples() if there is none
+	 */
+	public int findSlotAfter(Field f) {
+		int[] used = usedSlots();
+		int i = search(used, f, false);
+		return i < used.length ? used[i] : numSlots;
+	}
+
+	/**
+	 * Return the position in key order of the first tuple whose key is at
+	 * least f (inclusive) or greater than f (not inclusive), or the number of
+	 * tuples if there is none
+	 */
+	private int search(int[] used, Field f, boolean inclusive) {
+		Predicate.Op below = inclusive ? Predicate.Op.LESS_THAN : Predicate.Op.LESS_THAN_OR_EQ;
+		int lo = 0;
+		int hi = used.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(tuples[used[mid]].getField(keyField).compare(below, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * List the used slots, which hold the tuples in key order
+	 */
+	private int[] usedSlots() {
+		int[] used = usedSlots;
+		if(used == null) {
+			used = new int[numSlots];
+			int n = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					used[n++] = i;
+			used = Arrays.copyOf(used, n);
+			usedSlots = used;
+		}
+		return used;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -483,6 +726,14 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page from the given slot on,
+	 * such as one found by {@link #findSlot(Field)}
+	 */
+	public Iterator<Tuple> iterator(int fromSlot) {
+		return new BTreeLeafPageIterator(this, fromSlot);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -529,6 +780,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int fromSlot) {
+		this.p = p;
+		this.curTuple = fromSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -24,6 +24,19 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+
+	/** set in the parent pointer of pages with the prefix compressed layout */
+	protected final static int PREFIX_FLAG = 0x80000000;
+	/** marks a missing fence key on pages with the prefix compressed layout, as on an empty page */
+	private final static int NO_FENCE = 0;
+
+	// prefix compressed layout: the smallest and largest key the page may hold,
+	// or null at the left and right edge of the tree. Every key between the two
+	// starts with their common prefix, which is left out of the keys on the page
+	protected final boolean compressed;
+	protected Field lowFence;
+	protected Field highFence;
+	protected String prefix = "";
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
@@ -52,9 +65,34 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, key, false);
+	}
+
+	/**
+	 * Create a BTreePage with the prefix compressed layout if compressed is true.
+	 * @see #isCompressed(byte[])
+	 */
+	protected BTreePage(BTreePageId id, int key, boolean compressed) throws IOException {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.compressed = compressed;
+	}
+
+	/**
+	 * @return true if the raw page data has the prefix compressed layout, which is
+	 * marked by the top bit of the parent pointer at the start of the page
+	 */
+	protected static boolean isCompressed(byte[] data) {
+		return (data[0] & (PREFIX_FLAG >>> 24)) != 0;
+	}
+
+	/**
+	 * Mark raw page data as having the prefix compressed layout
+	 * @see #isCompressed(byte[])
+	 */
+	protected static void setCompressed(byte[] data) {
+		data[0] |= (byte) (PREFIX_FLAG >>> 24);
 	}
 
 	/**
@@ -112,6 +150,175 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * @return true if this page has the prefix compressed layout, with fence keys
+	 * and length-prefixed keys that leave out the prefix the fence keys share
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Get the low fence key of this page, which no key on the page is less than
+	 * @return the low fence key, or null on the left-most page of a level or if this
+	 * page does not have the prefix compressed layout
+	 */
+	public Field getLowFence() {
+		return lowFence;
+	}
+
+	/**
+	 * Get the high fence key of this page, which no key on the page is greater than
+	 * @return the high fence key, or null on the right-most page of a level or if this
+	 * page does not have the prefix compressed layout
+	 */
+	public Field getHighFence() {
+		return highFence;
+	}
+
+	/**
+	 * @return the prefix that the keys on this prefix compressed page share, and which
+	 * is left out of them, or the empty string
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Set the fence keys of this page. These are the keys of the entries around the
+	 * page in its parent, and every key on the page must lie between them.
+	 * @param low - the new low fence key, or null on the left-most page of a level
+	 * @param high - the new high fence key, or null on the right-most page of a level
+	 * @throws DbException if a key has the wrong type or this page does not have the
+	 * prefix compressed layout
+	 */
+	public void setFences(Field low, Field high) throws DbException {
+		if(!compressed) {
+			throw new DbException("only prefix compressed pages have fence keys");
+		}
+		if((low != null && low.getType() != Type.STRING_TYPE) || (high != null && high.getType() != Type.STRING_TYPE)) {
+			throw new DbException("key field type mismatch in setFences");
+		}
+		lowFence = low;
+		highFence = high;
+		prefix = commonPrefix(low, high);
+	}
+
+	/**
+	 * @return true if the fence keys of this page are the given bounds, which are
+	 * the keys around the page in its parent
+	 */
+	protected boolean checkFences(Field lowerBound, Field upperBound) {
+		return sameKey(lowFence, lowerBound) && sameKey(highFence, upperBound);
+	}
+
+	private static boolean sameKey(Field a, Field b) {
+		return a == null || b == null ? a == b : a.equals(b);
+	}
+
+	/**
+	 * @return the longest common prefix of two string keys, or the empty string if
+	 * either is null
+	 */
+	protected static String commonPrefix(Field a, Field b) {
+		if(a == null || b == null)
+			return "";
+		String s = ((StringField) a).getValue();
+		String t = ((StringField) b).getValue();
+		int n = Math.min(s.length(), t.length());
+		int i = 0;
+		while(i < n && s.charAt(i) == t.charAt(i))
+			i++;
+		return s.substring(0, i);
+	}
+
+	/**
+	 * @return the number of bytes the key f takes on a prefix compressed page:
+	 * a length byte and the characters that follow the prefix of the page
+	 */
+	protected int keySize(Field f) {
+		return 1 + ((StringField) f).getValue().length() - prefix.length();
+	}
+
+	/**
+	 * @return the number of bytes the largest key takes on this prefix compressed page
+	 */
+	protected int maxKeySize() {
+		return 1 + Type.STRING_LEN - prefix.length();
+	}
+
+	/**
+	 * Write a key to a prefix compressed page, leaving out the prefix of the page
+	 */
+	protected void writeKey(DataOutputStream dos, Field f) throws IOException {
+		String s = ((StringField) f).getValue();
+		dos.writeByte(s.length() - prefix.length());
+		dos.writeBytes(s.substring(prefix.length()));
+	}
+
+	/**
+	 * Read a key written by writeKey
+	 */
+	protected Field readKey(DataInputStream dis) throws IOException {
+		byte bs[] = new byte[dis.readUnsignedByte()];
+		dis.readFully(bs);
+		return new StringField(prefix + new String(bs), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the number of bytes the fence keys of this page take
+	 */
+	protected int fenceSize() {
+		return fenceSize(lowFence, highFence);
+	}
+
+	/**
+	 * @return the number of bytes the fence keys low and high take, either of which may be null
+	 */
+	protected static int fenceSize(Field low, Field high) {
+		int size = 2;
+		if(low != null)
+			size += ((StringField) low).getValue().length();
+		if(high != null)
+			size += ((StringField) high).getValue().length();
+		return size;
+	}
+
+	/**
+	 * Write the fence keys of a prefix compressed page in full, each as one more
+	 * than its length and its characters, or as NO_FENCE if it is null
+	 */
+	protected void writeFences(DataOutputStream dos) throws IOException {
+		for(Field f : new Field[] { lowFence, highFence }) {
+			if(f == null) {
+				dos.writeByte(NO_FENCE);
+			}
+			else {
+				String s = ((StringField) f).getValue();
+				dos.writeByte(s.length() + 1);
+				dos.writeBytes(s);
+			}
+		}
+	}
+
+	/**
+	 * Read the fence keys written by writeFences, and with them the prefix of the page
+	 */
+	protected void readFences(DataInputStream dis) throws IOException {
+		Field[] fences = new Field[2];
+		for(int i=0; i<fences.length; i++) {
+			int len = dis.readUnsignedByte();
+			if(len != NO_FENCE) {
+				byte bs[] = new byte[len - 1];
+				dis.readFully(bs);
+				fences[i] = new StringField(new String(bs), Type.STRING_LEN);
+			}
+		}
+		lowFence = fences[0];
+		highFence = fences[1];
+		prefix = commonPrefix(lowFence, highFence);
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -131,6 +338,27 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * Returns the raw data of the before image of this page, without parsing it as
+	 * getBeforeImage does
+	 */
+	byte[] getBeforeImageData() {
+		synchronized(oldDataLock) {
+			return oldData;
+		}
+	}
+
+	/**
+	 * Set the before image of this page to the specified raw data: its current contents
+	 * already serialized, or e.g. the contents an SMO leaves it with once the uncommitted
+	 * tuples are taken out
+	 */
+	void setBeforeImage(byte[] data) {
+		synchronized(oldDataLock) {
+			oldData = data;
+		}
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -12,6 +12,13 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
+	/** layout version of a plain B+ tree, and of files written before versions existed */
+	public final static int VERSION_BPLUS = 0;
+	/** layout version of a B-link tree, whose internal pages have high keys and right siblings */
+	public final static int VERSION_BLINK = 1;
+	/** layout version of a B+ tree keyed on a string field, whose pages store their keys prefix compressed */
+	public final static int VERSION_PREFIX = 2;
+
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
 
@@ -21,6 +28,7 @@ public class BTreeRootPtrPage implements Page {
 	private int root; 
 	private int rootCategory;
 	private int header;
+	private final int version;
 
 	private byte[] oldData;
 
@@ -31,7 +39,8 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page. The upper four bits of the category byte
+	 * hold the layout version of the file, which never changes.
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -39,7 +48,9 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = (int) dis.readByte();
+		int b = dis.readByte() & 0xff;
+		rootCategory = b & 0x0f;
+		version = b >> 4;
 
 		// read in the header pointer
 		header = dis.readInt();
@@ -89,9 +100,9 @@ public class BTreeRootPtrPage implements Page {
 			e.printStackTrace();
 		}
 
-		// write out the category of the root page (leaf or internal)
+		// write out the category of the root page (leaf or internal) and the version
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (version << 4 | rootCategory));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -126,6 +137,17 @@ public class BTreeRootPtrPage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeRootPtrPage of a file with the given layout version.
+	 * @see #createEmptyPageData()
+	 */
+	public static byte[] createEmptyPageData(int version) {
+		byte[] data = createEmptyPageData();
+		data[4] = (byte) (version << 4);
+		return data;
+	}
+
 	public void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
@@ -183,6 +205,14 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * Get the layout version of this B+ tree file
+	 * @return VERSION_BPLUS, VERSION_BLINK or VERSION_PREFIX
+	 */
+	public int getVersion() {
+		return version;
+	}
+
 	/**
 	 * Get the id of the first header page, or null if none exists
 	 * @return the id of the first header page
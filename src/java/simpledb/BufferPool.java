@@ -4,8 +4,7 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
 
 //import java.util.Objects;
 //import java.util.concurrent.ConcurrentHashMap;
@@ -18,6 +17,23 @@ import java.util.concurrent.atomic.AtomicLong;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Resident pages live in a fixed array of frames. Which frame to give up
+ * when the pool is full is decided by a {@link ReplacementPolicy}, chosen
+ * when the pool is created.
+ * <p>
+ * The frames are split into hash partitions by PageId. Each partition has
+ * its own frame table, replacement policy and latch, and the lock table is
+ * striped the same way, so requests for resident pages in different
+ * partitions never contend.
+ * <p>
+ * Buffer management is STEAL / NO FORCE. A dirty page may be evicted
+ * before its transaction commits, as long as an UPDATE record holding its
+ * before and after images is forced to the log first (the write-ahead
+ * rule). Commit writes UPDATE records for the transaction's dirty pages and
+ * forces only the log; the pages themselves are written later, on eviction
+ * or checkpoint. From then on they are dirtied by {@link #SYSTEM_TID}
+ * rather than by the transaction, which has ended.
  * 
  * @Threadsafe, all fields are final
  */
@@ -32,36 +48,87 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private static int SLEEP_LOCK_WAIT = 100;
-    private int numPages;
-    private AtomicLong counter = new AtomicLong();
-//    public Page[] pages;
-//    public PageId[] pids;
-//    public TransactionId[] tids;
-    private ConcurrentHashMap<PageId, Page> pageMap = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<PageId, Long> lruMap = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<PageId, Set<TransactionId>> shareSet = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<PageId, TransactionId> exclusive = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<TransactionId, PageId> request = new ConcurrentHashMap<>();
-
-//    private long timeMark = System.currentTimeMillis();
-//    private ConcurrentHashMap<PageId, Page> pageMap;
+    /** Smallest partition the default constructors will create. */
+    private static final int MIN_PAGES_PER_PARTITION = 256;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Dirtier of pages whose changes are already in the log and are never
+     * undone, i.e. committed changes not written back yet. Writing such a
+     * page back needs no UPDATE record of its own.
+     */
+    static final TransactionId SYSTEM_TID = new TransactionId();
+
+    private final int numPages;
+    private final BufferPoolPartition[] partitions;
+    private final LockManager lockManager;
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting with
+     * the CLOCK policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ClockPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, with one
+     * partition per available processor as long as every partition gets at
+     * least a few hundred pages. Small pools have a single partition, so
+     * that a full pool always means numPages resident pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyFactory creates the replacement policy of a partition,
+     *                      given the partition's number of frames
+     */
+    public BufferPool(int numPages, IntFunction<ReplacementPolicy> policyFactory) {
+        this(numPages, defaultPartitions(numPages), policyFactory);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions the number of hash partitions; each gets an
+     *                      equal share of numPages
+     * @param policyFactory creates the replacement policy of a partition,
+     *                      given the partition's number of frames
+     */
+    public BufferPool(int numPages, int numPartitions, IntFunction<ReplacementPolicy> policyFactory) {
         // some code goes here
+        if (numPartitions < 1 || numPartitions > Math.max(1, numPages)) {
+            throw new IllegalArgumentException("cannot split " + numPages + " pages into "
+                    + numPartitions + " partitions");
+        }
         this.numPages = numPages;
-//        tids = new TransactionId[numPages];
-//        pages = new Page[numPages];
-//        pids = new PageId[numPages];
-//        pageMap = new ConcurrentHashMap<>();
-//        lruMap = new ConcurrentHashMap<>()
+        this.partitions = new BufferPoolPartition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            int frames = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            ReplacementPolicy policy = policyFactory.apply(frames);
+            if (policy.capacity() != frames) {
+                throw new IllegalArgumentException("replacement policy has " + policy.capacity()
+                        + " frames, partition has " + frames);
+            }
+            partitions[i] = new BufferPoolPartition(this, policy);
+        }
+        this.lockManager = new LockManager(numPartitions, LockManager.NO_TIMEOUT);
     }
-    
+
+    private static int defaultPartitions(int numPages) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cpus, numPages / MIN_PAGES_PER_PARTITION));
+    }
+
+    private BufferPoolPartition partitionFor(PageId pid) {
+        return partitions[LockManager.partitionOf(pid, partitions.length)];
+    }
+
+    /** Return the lock manager, e.g. to pick a deadlock victim policy or read its counters */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -94,133 +161,25 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        long timeMark = System.currentTimeMillis();
-        int epy = numPages;
-            if (!pageMap.containsKey(pid)){
-                if (pageMap.size() == numPages){
-                    evictPage();
-                }
-                pageMap.put(pid, Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
-                lruMap.put(pid,counter.incrementAndGet());
-                if (perm == Permissions.READ_ONLY){
-                    shareSet.put(pid, new HashSet<>());
-                    shareSet.get(pid).add(tid);
-                    return pageMap.get(pid);
-                }else{
-                    exclusive.put(pid,tid);
-                    return pageMap.get(pid);
-                }
-            }
-            if (perm == Permissions.READ_ONLY){
-                if (exclusive.containsKey(pid)){
-                    if (exclusive.get(pid) == tid){
-                        lruMap.put(pid, counter.incrementAndGet());
-                        return pageMap.get(pid);
-                    }else{
-                        // block
-                        while (exclusive.containsKey(pid)){
-                            if (System.currentTimeMillis()-timeMark > 5000){
-                                throw new TransactionAbortedException();
-                            }
-                            try{
-                                Thread.sleep(SLEEP_LOCK_WAIT);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                        return getPage(tid,pid,perm);
-                    }
-                } else{
-                    if (shareSet.containsKey(pid)){
-                        shareSet.get(pid).add(tid);
-                    }else{
-                        shareSet.put(pid, new HashSet<>());
-                    }
-                    lruMap.put(pid, counter.incrementAndGet());
-                    return pageMap.get(pid);
-                }
-            }else{
-                if (exclusive.containsKey(pid)){
-                    if (exclusive.get(pid) == tid){
-                        lruMap.put(pid, counter.incrementAndGet());
-                        return pageMap.get(pid);
-                    }else{
-                        // block
-                        while (exclusive.containsKey(pid)){
-                            if (System.currentTimeMillis()-timeMark > 5000){
-                                throw new TransactionAbortedException();
-                            }
-                            try{
-                                Thread.sleep(SLEEP_LOCK_WAIT);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                        return getPage(tid,pid,perm);
-                    }
-                }else{
-                    if (shareSet.containsKey(pid)){
-                        if (shareSet.get(pid).contains(tid) && shareSet.get(pid).size() == 1){
-                            lruMap.put(pid, counter.incrementAndGet());
-                            shareSet.remove(pid);
-                            exclusive.put(pid,tid);
-                            return pageMap.get(pid);
-                        }else{
-                            while (shareSet.containsKey(pid) || exclusive.containsKey(pid)){
-                                if (System.currentTimeMillis()-timeMark > 5000){
-                                    throw new TransactionAbortedException();
-                                }
-                                try{
-                                    Thread.sleep(SLEEP_LOCK_WAIT);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                            return getPage(tid,pid,perm);
-                        }
-                    }else{
-                        exclusive.put(pid,tid);
-                        pageMap.put(pid,Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
-                        lruMap.put(pid, counter.incrementAndGet());
-                        return pageMap.get(pid);
-                    }
-                }
-            }
-
-
-
-//        for (int i = 0; i < this.numPages; i++) {
-//            if (pages[i] == null){
-//                epy = i;
-//            }
-//            if (pid.equals(pids[i])){
-//                tids[i] = tid;
-//                return pages[i];
-//            }
-//        }
-//        if (epy == numPages){
-//            evictPage();
-//            for (int i = 0; i < numPages ; i++) {
-//                if (pages[i] == null){
-//                    epy = i;
-//                }
-//            }
-//        }
-//
-//        tids[epy] = tid;
-//        pids[epy] = pid;
-//        pages[epy] = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-//        Lock lock;
-//        if (perm == Permissions.READ_ONLY){
-//            lock = new ReentrantReadWriteLock().readLock();
-//        }else{
-//            lock =  new ReentrantReadWriteLock().writeLock();
-//        }
-//
-//        lock.lock();
-//        return pages[epy];
-
+        lockManager.acquire(tid, pid, perm);
+        return peekPage(pid);
+    }
 
+    /**
+     * Retrieve the specified page without taking a lock on it, loading it
+     * if it is not resident. The caller must protect itself from concurrent
+     * changes to the page some other way, as B+ trees do with page latches.
+     *
+     * @param pid the ID of the requested page
+     */
+    Page peekPage(PageId pid) throws DbException {
+        BufferPoolPartition partition = partitionFor(pid);
+        Page page = partition.access(pid);
+        if (page == null) {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            page = partition.load(page);
+        }
+        return page;
     }
 
     /**
@@ -235,17 +194,7 @@ public class BufferPool {
     public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-//        lockMap.get(pid)
-        if (exclusive.containsKey(pid)){
-            assert exclusive.get(pid) == tid;
-            exclusive.remove(pid);
-        }
-        if (shareSet.containsKey(pid)){
-            shareSet.get(pid).remove(tid);
-            if (shareSet.get(pid).size() == 0){
-                shareSet.remove(pid);
-            }
-        }
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -263,19 +212,18 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        if (exclusive.containsKey(p) && exclusive.get(p) == tid){
-            return true;
-        }else if (shareSet.containsKey(p) && shareSet.get(p).contains(tid)){
-            return true;
-        }else{
-            return false;
-        }
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
      *
+     * A commit logs the after images of the transaction's dirty pages and
+     * a COMMIT record; an abort rolls back the pages that were stolen and
+     * logs an ABORT record. Either is skipped for a transaction that never
+     * wrote to the log, as it has nothing to redo or undo there.
+     *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
@@ -283,38 +231,47 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        if (commit){
-            flushPages(tid);
-            for (Map.Entry<PageId, TransactionId> entry : exclusive.entrySet()) {
-                if (entry.getValue() == tid){
-                    exclusive.remove(entry.getKey());
-                }
+        try {
+            LogFile log = Database.getLogFile();
+            if (commit){
+                logDirtyPages(tid);
+            }else{
+                // the images put back on disk may hold SMOs whose records
+                // have not been forced yet
+                log.force();
             }
-
-            for (Map.Entry<PageId, Set<TransactionId>> entry : shareSet.entrySet()) {
-                entry.getValue().remove(tid);
-                if (entry.getValue().size() == 0){
-                    shareSet.remove(entry.getKey());
+            // pages are dealt with before the COMMIT or ABORT record, so
+            // that an eviction never writes back a page under a tid that
+            // has already ended
+            for (PageId pid : lockManager.getLockedPages(tid)) {
+                Page page = partitionFor(pid).resident(pid);
+                if (page == null || !tid.equals(page.isDirty())){
+                    continue;
                 }
-            }
-        }else{
-            for (Map.Entry<PageId, TransactionId> entry : exclusive.entrySet()) {
-                if (entry.getValue() == tid){
-                    exclusive.remove(entry.getKey());
+                if (commit){
+                    // NO FORCE: the page stays dirty and is written back
+                    // later; its after image is already in the log
+                    partitionFor(pid).commitPage(pid, tid);
+                }else{
+                    // the before image may hold committed changes that were
+                    // never written (NO FORCE), so put it on disk rather than
+                    // just dropping the page; pages that were stolen are
+                    // restored by LogFile.rollback
+                    Database.getCatalog().getDatabaseFile(pid.getTableId())
+                            .writePage(page.getBeforeImage());
+                    discardPage(pid);
                 }
-                discardPage(entry.getKey());
             }
-
-            for (Map.Entry<PageId, Set<TransactionId>> entry : shareSet.entrySet()) {
-                entry.getValue().remove(tid);
-                if (entry.getValue().size() == 0){
-                    shareSet.remove(entry.getKey());
+            if (log.isLive(tid)){
+                if (commit){
+                    log.logCommit(tid);
+                }else{
+                    log.logAbort(tid); // does rollback too
                 }
-                discardPage(entry.getKey());
             }
+        } finally {
+            lockManager.releaseAll(tid);
         }
-
-//        transactionComplete(tid);
     }
 
     /**
@@ -346,31 +303,12 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Make newVersion the resident copy of its page, loading it into a frame
+     * if the page is not in the pool.
+     */
     public void updatePage(Page newVersion, TransactionId tid) throws DbException {
-//        int epy = numPages;
-        pageMap.put(newVersion.getId(), newVersion);
-//        for (int i = 0; i < this.numPages; i++) {
-//            if (pages[i] == null){
-//                epy = i;
-//            }
-//            if (newVersion.getId().equals(pids[i])){
-//                tids[i] = tid;
-//                pages[i] = newVersion;
-//                return;
-//            }
-//        }
-//        if (epy == numPages){
-//            evictPage();
-//            for (int i = 0; i < numPages ; i++) {
-//                if (pages[i] == null){
-//                    epy = i;
-//                }
-//            }
-//        }
-//
-//        tids[epy] = tid;
-//        pids[epy] = newVersion.getId();
-//        pages[epy] = newVersion;
+        partitionFor(newVersion.getId()).put(newVersion);
     }
 
     /**
@@ -403,22 +341,17 @@ public class BufferPool {
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Every page is logged before it is written, so this is safe even for
+     * pages of transactions that have not committed yet.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Map.Entry<PageId, Page> pageEntry : pageMap.entrySet()) {
-            if (pageEntry.getValue().isDirty() != null){
-                flushPage(pageEntry.getKey());
+        for (BufferPoolPartition partition : partitions) {
+            for (Page page : partition.dirtyPages()) {
+                flushPage(page.getId());
             }
         }
-//        for (int i = 0; i < numPages; i++) {
-//            if (pages[i]!= null && pages[i].isDirty() != null){
-//                flushPage(pids[i]);
-//            }
-//        }
 
     }
 
@@ -430,100 +363,67 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-//        for (int i = 0; i < numPages; i++) {
-//            if (pid.equals(pids[i])) {
-//                pids[i] = null;
-//                tids[i] = null;
-//                pages[i] = null;
-//            }
-//        }
-        pageMap.remove(pid);
-        lruMap.remove(pid);
+        partitionFor(pid).discard(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-//        for (int i = 0; i < numPages; i++) {
-//            if (pid.equals(pids[i])){
-//                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pages[i]);
-//            }
-//        }
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pageMap.get(pid));
-
-
+        partitionFor(pid).flush(pid);
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Write a dirty page to its file, obeying the write-ahead rule: an
+     * UPDATE record for the page is appended and the log forced before the
+     * page itself is written. A page dirtied by {@link #SYSTEM_TID} is
+     * already covered by the log, which only has to be forced.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
-        for (Map.Entry<PageId, TransactionId> pageEntry : exclusive.entrySet()) {
-            if (pageEntry.getValue()== tid){
-                flushPage(pageEntry.getKey());
+    void writeBack(Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null){
+            LogFile log = Database.getLogFile();
+            if (!SYSTEM_TID.equals(dirtier)){
+                log.logWrite(dirtier, page.getBeforeImage(), page);
             }
+            log.force();
         }
-//        for (int i = 0; i < numPages; i++) {
-//            if (tid.equals(tids[i])){
-//                flushPage(pids[i]);
-//            }
-//        }
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        page.markDirty(false, null);
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Append an UPDATE record for every page tid has dirtied, so that the
+     * transaction's effects can be redone from the log. Called before the
+     * COMMIT record is written; no data pages are written.
      */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        Map.Entry<PageId, Long> lruEntry = null;
-        if (lruMap.size() == 0){
-            throw new DbException("no page in buffer pool");
-        }
-        for (Map.Entry<PageId, Long> entry : lruMap.entrySet()) {
-            Page page = pageMap.get(entry.getKey());
-            if (page.isDirty() != null){
-                continue;
-            }
-            if (lruEntry == null){
-                lruEntry = entry;
-            }else if (lruEntry.getValue() > entry.getValue()){
-                lruEntry = entry;
+    public void logDirtyPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (PageId pid : lockManager.getLockedPages(tid)) {
+            Page page = partitionFor(pid).resident(pid);
+            if (page != null && tid.equals(page.isDirty())){
+                log.logWrite(tid, page.getBeforeImage(), page);
             }
         }
-        if (lruEntry == null){
-            throw new DbException("All pages are dirty");
+    }
+
+    /** Write all pages of the specified transaction to disk.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+        // some code goes here
+        // not necessary for lab1|lab2
+        for (PageId pid : lockManager.getLockedPages(tid)) {
+            Page page = partitionFor(pid).resident(pid);
+            if (page != null && tid.equals(page.isDirty())){
+                flushPage(pid);
+            }
         }
-        //            flushPage(lruEntry.getKey());
-        discardPage(lruEntry.getKey());
-
-//        long tidnum = Long.MAX_VALUE;
-//        int k = -1;
-//        for (int i = 0; i < numPages; i++) {
-//            if ((tids[i] != null) && (tids[i].getId()<tidnum)){
-//                tidnum = tids[i].getId();
-//                k = i;
-//            }
-//        }
-//        if (k == -1){
-//            throw new DbException("no page in buffer pool");
-//        }else{
-//            try {
-//                flushPage(pids[k]);
-//                discardPage(pids[k]);
-//            }catch (IOException e){
-//                throw new DbException("can't flush to disk");
-//            }
-//        }
     }
 
 }
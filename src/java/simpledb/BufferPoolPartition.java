@@ -0,0 +1,268 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * One hash partition of the BufferPool: a fixed set of frames, the table
+ * mapping resident PageIds to frames, and the replacement policy for those
+ * frames, all protected by the partition's own monitor. Pages that hash to
+ * different partitions never contend for a latch.
+ * <p>
+ * Any page may be evicted (STEAL). A dirty victim is handed back to the
+ * BufferPool, which logs it before writing it out. Write-backs run outside
+ * the monitor, so that a log force never stalls the threads hitting other
+ * pages of the partition; the frame is marked as being written meanwhile,
+ * and threads asking for that page wait for the write to finish, as they
+ * must not change it while it is written.
+ *
+ * @see BufferPool
+ */
+class BufferPoolPartition {
+
+    private final BufferPool pool;
+    private final ReplacementPolicy policy;
+    private final Page[] frames;
+    private final HashMap<PageId, Integer> frameOf = new HashMap<>();
+    private final int[] freeFrames;
+    private int numFree;
+    /** Frames whose page is being written back */
+    private final boolean[] writing;
+    private int numWriting;
+
+    BufferPoolPartition(BufferPool pool, ReplacementPolicy policy) {
+        int n = policy.capacity();
+        this.pool = pool;
+        this.policy = policy;
+        this.frames = new Page[n];
+        this.freeFrames = new int[n];
+        this.writing = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            freeFrames[i] = n - 1 - i;
+        }
+        this.numFree = n;
+    }
+
+    /** Return the resident copy of pid and record the access, or null on a miss. */
+    synchronized Page access(PageId pid) {
+        Integer frame = settledFrame(pid);
+        if (frame == null) {
+            return null;
+        }
+        policy.pageAccessed(frame);
+        return frames[frame];
+    }
+
+    /** Return the resident copy of pid, or null, without counting an access. */
+    synchronized Page resident(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        return frame == null ? null : frames[frame];
+    }
+
+    /**
+     * Install a page that was just read from disk, unless another thread
+     * loaded it first.
+     *
+     * @return the page that is now resident
+     */
+    Page load(Page page) throws DbException {
+        while (true) {
+            synchronized (this) {
+                Integer frame = settledFrame(page.getId());
+                if (frame != null) {
+                    policy.pageAccessed(frame);
+                    return frames[frame];
+                }
+                if (numFree > 0) {
+                    install(page);
+                    return page;
+                }
+            }
+            evict();
+        }
+    }
+
+    /** Make page the resident copy of its PageId, replacing any older copy. */
+    void put(Page page) throws DbException {
+        while (true) {
+            synchronized (this) {
+                Integer frame = settledFrame(page.getId());
+                if (frame != null) {
+                    frames[frame] = page;
+                    policy.pageAccessed(frame);
+                    return;
+                }
+                if (numFree > 0) {
+                    install(page);
+                    return;
+                }
+            }
+            evict();
+        }
+    }
+
+    /** Drop pid from the partition without writing it. */
+    synchronized void discard(PageId pid) {
+        Integer frame = settledFrame(pid);
+        if (frame == null) {
+            return;
+        }
+        policy.pageRemoved(frame);
+        freeFrame(frame);
+    }
+
+    /**
+     * Hand the resident copy of pid over to BufferPool.SYSTEM_TID if tid,
+     * which is committing, dirtied it. An eviction writes the page back
+     * either before, under tid, or after, under the system id, but never
+     * under tid once it has ended.
+     */
+    synchronized void commitPage(PageId pid, TransactionId tid) {
+        Integer frame = settledFrame(pid);
+        if (frame == null) {
+            return;
+        }
+        Page page = frames[frame];
+        if (tid.equals(page.isDirty())) {
+            page.setBeforeImage();
+            page.markDirty(true, BufferPool.SYSTEM_TID);
+        }
+    }
+
+    /** Write back the resident copy of pid if it is dirty. */
+    void flush(PageId pid) throws IOException {
+        int frame;
+        Page page;
+        synchronized (this) {
+            Integer f = settledFrame(pid);
+            if (f == null || frames[f].isDirty() == null) {
+                return;
+            }
+            frame = f;
+            page = frames[frame];
+            startWrite(frame);
+        }
+        try {
+            pool.writeBack(page);
+        } finally {
+            synchronized (this) {
+                endWrite(frame);
+            }
+        }
+    }
+
+    /** Return the resident pages that are dirty. */
+    synchronized List<Page> dirtyPages() {
+        List<Page> dirty = new ArrayList<>();
+        for (Page page : frames) {
+            if (page != null && page.isDirty() != null) {
+                dirty.add(page);
+            }
+        }
+        return dirty;
+    }
+
+    private void install(Page page) {
+        int frame = freeFrames[--numFree];
+        frames[frame] = page;
+        frameOf.put(page.getId(), frame);
+        policy.pageLoaded(frame, page.getId());
+    }
+
+    /**
+     * Return the frame of pid once no write-back of it is in progress, or
+     * null if pid is not resident. Must hold this.
+     */
+    private Integer settledFrame(PageId pid) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Integer frame = frameOf.get(pid);
+                if (frame == null || !writing[frame]) {
+                    return frame;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void startWrite(int frame) {
+        writing[frame] = true;
+        numWriting++;
+    }
+
+    private void endWrite(int frame) {
+        writing[frame] = false;
+        numWriting--;
+        notifyAll();
+    }
+
+    /**
+     * Evict a page to make room. A dirty victim is written back outside
+     * the monitor; if that fails, or the page was dirtied again by a
+     * thread that already held it, the policy gets the frame back.
+     */
+    private void evict() throws DbException {
+        int frame;
+        Page victim;
+        synchronized (this) {
+            if (numFree > 0) {
+                return;
+            }
+            frame = policy.evict(f -> !writing[f]);
+            if (frame < 0) {
+                if (numWriting == 0) {
+                    throw new DbException("buffer pool partition has no frames");
+                }
+                // every frame is being written back; wait for one of them
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while waiting for a free frame");
+                }
+                return;
+            }
+            victim = frames[frame];
+            if (victim.isDirty() == null) {
+                freeFrame(frame);
+                return;
+            }
+            startWrite(frame);
+        }
+
+        IOException error = null;
+        try {
+            pool.writeBack(victim);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            endWrite(frame);
+            Page page = frames[frame];
+            if (error == null && page.isDirty() == null) {
+                freeFrame(frame);
+            } else {
+                policy.pageLoaded(frame, page.getId());
+            }
+        }
+        if (error != null) {
+            throw new DbException("could not write back evicted page: " + error.getMessage());
+        }
+    }
+
+    private void freeFrame(int frame) {
+        frameOf.remove(frames[frame].getId());
+        frames[frame] = null;
+        freeFrames[numFree++] = frame;
+    }
+}
@@ -12,6 +12,9 @@ import java.util.*;
  * For now, this is a stub catalog that must be populated with tables by a
  * user program before it can be used -- eventually, this should be converted
  * to a catalog that reads a catalog table from disk.
+ * <p>
+ * The catalog owns the files of its tables: a file is closed when its table
+ * is replaced or the catalog is cleared.
  * 
  * @Threadsafe
  */
@@ -62,13 +65,13 @@ public class Catalog {
         // some code goes here
         // Need if statement? check size?
         for (int i = 0; i < size; i++) {
-           if (name.equals(tables[i].name)){
+           if (name.equals(tables[i].name) || file.getId() == tableids[i]){
+               if (tables[i].file != file){
+                   close(tables[i].file);
+               }
                tables[i] = new Table(file, name, pkeyField);
                tableids[i] = file.getId();
                return;
-           }else if (file.getId() == tableids[i]){
-               tables[i] = new Table(file, name, pkeyField);
-               return;
            }
         }
         tables[size] = new Table(file, name, pkeyField);
@@ -152,7 +155,7 @@ public class Catalog {
 
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
-        return Arrays.stream(tableids).iterator();
+        return Arrays.stream(tableids, 0, size).iterator();
 
     }
 
@@ -161,14 +164,32 @@ public class Catalog {
         return tables[TableIdToIndex(id)].name;
     }
     
-    /** Delete all tables from the catalog */
+    /** Force the files of all tables to disk */
+    public void forceAll() throws IOException {
+        for (int i = 0; i < size; i++) {
+            tables[i].file.force();
+        }
+    }
+
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
         // some code goes here
+        for (int i = 0; i < size; i++) {
+            close(tables[i].file);
+        }
         tables = new Table[maxSize];
         tableids = new int[maxSize];
         size = 0;
     }
 
+    private static void close(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private int TableIdToIndex(int tableid) throws NoSuchElementException{
         try {
             for (int i = 0; i < size; i++) {
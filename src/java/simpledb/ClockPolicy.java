@@ -0,0 +1,62 @@
+package simpledb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK (second chance) replacement. Every frame has a reference bit that is
+ * set on each access; the clock hand sweeps the frames, clearing set bits,
+ * and evicts the first evictable frame whose bit is already clear.
+ * <p>
+ * A sweep gives up after passing every frame twice, so a pool where nothing
+ * can be evicted fails in O(capacity) time; otherwise a victim is found in
+ * amortized constant time.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final boolean[] resident;
+    private final boolean[] referenced;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        resident = new boolean[capacity];
+        referenced = new boolean[capacity];
+    }
+
+    public int capacity() {
+        return resident.length;
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        resident[frame] = true;
+        referenced[frame] = true;
+    }
+
+    public void pageAccessed(int frame) {
+        referenced[frame] = true;
+    }
+
+    public void pageRemoved(int frame) {
+        resident[frame] = false;
+        referenced[frame] = false;
+    }
+
+    public int evict(IntPredicate evictable) {
+        int n = resident.length;
+        for (int scanned = 0; scanned < 2 * n; scanned++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            if (!resident[frame]) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (evictable.test(frame)) {
+                resident[frame] = false;
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
@@ -75,7 +75,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        // close the files of the old catalog's tables
+        _instance.getAndSet(new Database())._catalog.clear();
     }
 
 }
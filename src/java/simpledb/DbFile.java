@@ -88,4 +88,19 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Force everything written to this file so far to disk. Called by a
+     * checkpoint before it lets the log that covers the writes go.
+     */
+    public default void force() throws IOException {
+    }
+
+    /**
+     * Release the resources, such as open channels, held for this file.
+     * Called by the Catalog when the table is dropped or replaced; the file
+     * must still work if it is used again afterwards.
+     */
+    public default void close() throws IOException {
+    }
 }
@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Approximate count of the free tuple slots on each page of a HeapFile, used
+ * by {@link HeapFile#insertTuple} to go straight to a page with room instead
+ * of trying every page in turn.
+ * <p>
+ * The map is not persisted. HeapFile rebuilds it from the page headers on
+ * disk the first time it is needed, and after that it is kept up to date by
+ * HeapPage.insertTuple and deleteTuple and whenever a page is read from disk.
+ * Changes undone by an abort can leave a count stale until the page is read
+ * again, so the map is only a hint: callers must still check the page itself.
+ */
+class FreeSpaceMap {
+
+    private int[] free;
+    /** pages whose free count is positive */
+    private final BitSet withRoom = new BitSet();
+
+    FreeSpaceMap(int numPages) {
+        free = new int[Math.max(16, numPages)];
+    }
+
+    /** Record that the given page has freeSlots empty slots. */
+    synchronized void set(int pageNo, int freeSlots) {
+        ensureCapacity(pageNo);
+        free[pageNo] = freeSlots;
+        withRoom.set(pageNo, freeSlots > 0);
+    }
+
+    /** Add delta to the free count of the given page. */
+    synchronized void adjust(int pageNo, int delta) {
+        ensureCapacity(pageNo);
+        set(pageNo, Math.max(0, free[pageNo] + delta));
+    }
+
+    /** Return the approximate number of empty slots on the given page. */
+    synchronized int freeSlots(int pageNo) {
+        return pageNo < free.length ? free[pageNo] : 0;
+    }
+
+    /**
+     * Return the first page at or after fromPage that is believed to have a
+     * free slot, or -1 if there is none.
+     */
+    synchronized int pageWithRoom(int fromPage) {
+        return withRoom.nextSetBit(fromPage);
+    }
+
+    private void ensureCapacity(int pageNo) {
+        if (pageNo >= free.length) {
+            free = Arrays.copyOf(free, Math.max(pageNo + 1, free.length * 2));
+        }
+    }
+}
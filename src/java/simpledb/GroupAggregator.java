@@ -0,0 +1,467 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Computes several aggregates at once, grouped by any number of fields, in a
+ * single pass over its input.
+ * <p>
+ * Groups are numbered by a {@link GroupTable} on the composite group key,
+ * and each group's aggregates are kept in primitive long arrays indexed by
+ * group number: one running minimum, maximum or sum per aggregate, and the
+ * group's tuple count, which COUNT and AVG share. Sums are therefore exact;
+ * AVG is the long sum divided by the count. Integer fields support MIN, MAX,
+ * SUM, AVG and COUNT; string fields support COUNT only.
+ * <p>
+ * The groups held in memory are limited by a memory budget. When the table
+ * outgrows it, its partial aggregates are hash-partitioned on the group key
+ * into temporary {@link SpillFile}s and the table starts over empty. Once
+ * the input is exhausted the partitions are aggregated one at a time; since
+ * all the partial aggregates of a group land in the same partition, each
+ * partition's result is final. A partition that is itself too big is split
+ * again with a different hash function.
+ * <p>
+ * Result tuples hold the group-by fields followed by the aggregates, all of
+ * which are INTs. Unless the input was spilled, they are returned in the
+ * order their groups first appeared.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    /** most partitions written at once, which bounds the open files */
+    private static final int MAX_PARTITIONS = 64;
+    /** levels of repartitioning tried before a partition is kept in memory regardless */
+    private static final int MAX_LEVELS = 6;
+
+    private static volatile long defaultMemoryBudget = 32L << 20;
+
+    private final int[] gbfields;
+    private final Type[] gbfieldtypes;
+    private final int[] afields;
+    private final Aggregator.Op[] ops;
+    private GroupTable groups;
+    /** per group and aggregate: the MIN, MAX or SUM so far */
+    private long[] values;
+    /** per group: the number of tuples */
+    private long[] counts;
+    private TupleDesc td;
+
+    private long memoryBudget = defaultMemoryBudget;
+    /** estimated bytes held per group */
+    private final long groupBytes;
+    /**
+     * partial aggregates: the group-by fields, then each aggregate's value
+     * and the count, each long as a pair of INTs (high, low)
+     */
+    private final TupleDesc partialTd;
+    /** where the table is spilled to, or null while it fits in memory */
+    private transient SpillFile[] spill;
+    private transient int spillLevel;
+    /** the partitions of the input, once it has been spilled and finished */
+    private transient SpillFile[] partitions;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param ops
+     *            the aggregation operator of each aggregate field
+     * @throws IllegalArgumentException
+     *             if the arrays do not match or there is no aggregate
+     * @throws UnsupportedOperationException
+     *             if an operator is not supported on its field's type
+     */
+    public GroupAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Aggregator.Op[] ops) {
+        if (gbfields.length != gbfieldtypes.length || afields.length != ops.length
+                || afields.length != afieldtypes.length || afields.length == 0) {
+            throw new IllegalArgumentException("need one type per field and one operator per aggregate");
+        }
+        for (int j = 0; j < ops.length; j++) {
+            Aggregator.Op op = ops[j];
+            if (afieldtypes[j] == Type.STRING_TYPE ? op != Op.COUNT
+                    : op != Op.MIN && op != Op.MAX && op != Op.SUM
+                            && op != Op.AVG && op != Op.COUNT) {
+                throw new UnsupportedOperationException("Can't apply " + op
+                        + " to a field of type " + afieldtypes[j]);
+            }
+        }
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+
+        // hash slots, key codes and accumulators, each with room to grow;
+        // every string key may add a dictionary entry
+        long bytes = 32 + 8L * gbfields.length + 16L * (ops.length + 1)
+                + 32L * Math.max(0, gbfields.length - 2);
+        Type[] partialTypes = new Type[gbfields.length + 2 * (ops.length + 1)];
+        for (int i = 0; i < gbfields.length; i++) {
+            partialTypes[i] = gbfieldtypes[i];
+            if (gbfieldtypes[i] == Type.STRING_TYPE) {
+                bytes += 64 + Type.STRING_LEN;
+            }
+        }
+        Arrays.fill(partialTypes, gbfields.length, partialTypes.length, Type.INT_TYPE);
+        this.groupBytes = bytes;
+        this.partialTd = new TupleDesc(partialTypes);
+        resetTable();
+    }
+
+    /**
+     * Set the number of bytes of groups the aggregator may hold in memory.
+     * When there are more groups, partial aggregates are spilled to disk.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = Math.max(1, bytes);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Set the memory budget of aggregators created from now on. */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = Math.max(1, bytes);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group, grouping as
+     * indicated in the constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        if (this.td == null) {
+            setTupleDesc(tup);
+        }
+        int g = groupOf(tup, gbfields);
+        int base = g * ops.length;
+        for (int j = 0; j < ops.length; j++) {
+            if (ops[j] != Op.COUNT) {
+                merge(g, base + j, ops[j], ((IntField) tup.getField(afields[j])).getValue());
+            }
+        }
+        counts[g]++;
+        if (overflowing()) {
+            try {
+                spillTable(0);
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** Fold v into the running value at index i of a group that has count[g] tuples so far. */
+    private void merge(int g, int i, Aggregator.Op op, long v) {
+        if (counts[g] == 0) {
+            values[i] = v;
+        } else if (op == Op.MIN) {
+            values[i] = Math.min(values[i], v);
+        } else if (op == Op.MAX) {
+            values[i] = Math.max(values[i], v);
+        } else {
+            values[i] += v;
+        }
+    }
+
+    /** Return the group number of the key in the given fields of t, growing the accumulators for a new group. */
+    private int groupOf(Tuple t, int[] fields) {
+        int g = groups.groupOf(t, fields);
+        if (g == counts.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+            counts = Arrays.copyOf(counts, g * 2);
+        }
+        return g;
+    }
+
+    private boolean overflowing() {
+        return groups.size() * groupBytes > memoryBudget;
+    }
+
+    private void resetTable() {
+        groups = new GroupTable(gbfieldtypes);
+        values = new long[16 * ops.length];
+        counts = new long[16];
+    }
+
+    /**
+     * Write the partial aggregates of the table to the spill partitions of
+     * the given level, creating them if needed, and empty the table.
+     */
+    private void spillTable(int level) throws DbException {
+        if (spill == null) {
+            int fanOut = (int) Math.max(2, Math.min(MAX_PARTITIONS,
+                    memoryBudget / SpillFile.BUFFER_SIZE));
+            spill = new SpillFile[fanOut];
+            spillLevel = level;
+            for (int p = 0; p < fanOut; p++) {
+                spill[p] = new SpillFile(partialTd);
+            }
+        }
+        Field[] key = new Field[gbfields.length];
+        for (int g = 0; g < groups.size(); g++) {
+            Tuple partial = new Tuple(partialTd);
+            for (int i = 0; i < key.length; i++) {
+                key[i] = groups.keyOf(g, i);
+                partial.setField(i, key[i]);
+            }
+            int f = key.length;
+            for (int j = 0; j < ops.length; j++, f += 2) {
+                setLong(partial, f, values[g * ops.length + j]);
+            }
+            setLong(partial, f, counts[g]);
+            spill[partition(key, spillLevel, spill.length)].add(partial);
+        }
+        resetTable();
+    }
+
+    /** Return the partition of key among n, hashing differently at each level. */
+    private static int partition(Field[] key, int level, int n) {
+        long h = level * 0x9e3779b97f4a7c15L;
+        for (Field f : key) {
+            h = h * 31 + f.hashCode();
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) ((h & Long.MAX_VALUE) % n);
+    }
+
+    private static void setLong(Tuple t, int i, long v) {
+        t.setField(i, new IntField((int) (v >>> 32)));
+        t.setField(i + 1, new IntField((int) v));
+    }
+
+    private static long getLong(Tuple t, int i) {
+        return (long) ((IntField) t.getField(i)).getValue() << 32
+                | (((IntField) t.getField(i + 1)).getValue() & 0xffffffffL);
+    }
+
+    /**
+     * Stop accepting input: if the table was spilled, spill the rest of it
+     * so that the partitions hold all the groups.
+     */
+    private void finishInput() throws DbException {
+        if (spill != null) {
+            spillTable(0);
+            partitions = spill;
+            spill = null;
+        }
+    }
+
+    /**
+     * Load the partial aggregates of a partition into the empty table. If
+     * they do not fit, they are split into partitions of the next level
+     * instead, which are returned; otherwise null is returned.
+     */
+    private SpillFile[] load(SpillFile part, int level) throws DbException {
+        int[] keyFields = new int[gbfields.length];
+        for (int i = 0; i < keyFields.length; i++) {
+            keyFields[i] = i;
+        }
+        SpillFile.Reader r = part.reader();
+        try {
+            while (r.hasNext()) {
+                Tuple partial = r.next();
+                int g = groupOf(partial, keyFields);
+                int f = keyFields.length;
+                for (int j = 0; j < ops.length; j++, f += 2) {
+                    merge(g, g * ops.length + j, ops[j], getLong(partial, f));
+                }
+                counts[g] += getLong(partial, f);
+                if (overflowing() && level + 1 < MAX_LEVELS) {
+                    spillTable(level + 1);
+                }
+            }
+        } finally {
+            r.close();
+        }
+        if (spill == null) {
+            return null;
+        }
+        spillTable(level + 1);
+        SpillFile[] parts = spill;
+        spill = null;
+        return parts;
+    }
+
+    /** Delete any partitions on disk and empty the table. */
+    void clear() {
+        for (SpillFile[] files : new SpillFile[][] { spill, partitions }) {
+            if (files != null) {
+                for (SpillFile f : files) {
+                    // null past a partition that could not be created
+                    if (f != null) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+        spill = null;
+        partitions = null;
+        resetTable();
+    }
+
+    private void setTupleDesc(Tuple tup) {
+        TupleDesc child = tup.getTupleDesc();
+        Type[] typeAr = new Type[gbfields.length + afields.length];
+        String[] fieldAr = new String[typeAr.length];
+        for (int i = 0; i < gbfields.length; i++) {
+            typeAr[i] = child.getFieldType(gbfields[i]);
+            fieldAr[i] = child.getFieldName(gbfields[i]);
+        }
+        for (int j = 0; j < afields.length; j++) {
+            typeAr[gbfields.length + j] = Type.INT_TYPE;
+            fieldAr[gbfields.length + j] = afields.length == 1 ? child.getFieldName(afields[j])
+                    : ops[j] + child.getFieldName(afields[j]);
+        }
+        this.td = new TupleDesc(typeAr, fieldAr);
+    }
+
+    /**
+     * Return aggregate j of the given group.
+     *
+     * @throws DbException if it does not fit in an IntField
+     */
+    private IntField result(int group, int j) throws DbException {
+        long result;
+        switch (ops[j]) {
+            case COUNT: result = counts[group]; break;
+            case AVG: result = values[group * ops.length + j] / counts[group]; break;
+            default: result = values[group * ops.length + j];
+        }
+        if (result != (int) result) {
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < gbfields.length; i++) {
+                key.append(i == 0 ? "" : ", ").append(groups.keyOf(group, i));
+            }
+            throw new DbException(ops[j] + " of group (" + key + ") is " + result
+                    + ", which does not fit in an INT");
+        }
+        return new IntField((int) result);
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results. Opening it ends the
+     * input; if the input was spilled, the partitions are aggregated one at
+     * a time as the results are read.
+     *
+     * @return a DbIterator whose tuples are the group-by fields followed by
+     *         the aggregate values, in the order given to the constructor
+     */
+    public DbIterator iterator() {
+        class GroupAggIterator implements DbIterator {
+            private static final long serialVersionUID = 1L;
+            private int next = -1;
+            /** partitions still to aggregate, with their levels */
+            private ArrayDeque<SpillFile> pending;
+            private ArrayDeque<Integer> levels;
+            /** the partition in the table, if it is to be deleted once read */
+            private SpillFile loaded;
+
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                finishInput();
+                if (partitions != null) {
+                    resetTable();
+                    pending = new ArrayDeque<SpillFile>(Arrays.asList(partitions));
+                    levels = new ArrayDeque<Integer>();
+                    for (int p = 0; p < partitions.length; p++) {
+                        levels.add(0);
+                    }
+                }
+                next = 0;
+            }
+
+            @Override
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                if (next < 0) {
+                    return false;
+                }
+                while (next >= groups.size() && pending != null && !pending.isEmpty()) {
+                    dropLoaded();
+                    resetTable();
+                    SpillFile part = pending.pollFirst();
+                    int level = levels.pollFirst();
+                    SpillFile[] parts = load(part, level);
+                    if (level > 0) {
+                        loaded = part;
+                    }
+                    if (parts != null) {
+                        dropLoaded();
+                        for (int p = parts.length - 1; p >= 0; p--) {
+                            pending.addFirst(parts[p]);
+                            levels.addFirst(level + 1);
+                        }
+                    }
+                    next = 0;
+                }
+                return next < groups.size();
+            }
+
+            @Override
+            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int g = next++;
+                Tuple nextTuple = new Tuple(td);
+                for (int i = 0; i < gbfields.length; i++) {
+                    nextTuple.setField(i, groups.keyOf(g, i));
+                }
+                for (int j = 0; j < ops.length; j++) {
+                    nextTuple.setField(gbfields.length + j, result(g, j));
+                }
+                return nextTuple;
+            }
+
+            /** Delete the repartitioned file the table was loaded from. */
+            private void dropLoaded() {
+                if (loaded != null) {
+                    loaded.delete();
+                    loaded = null;
+                }
+            }
+
+            @Override
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            @Override
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            @Override
+            public void close() {
+                next = -1;
+                dropLoaded();
+                if (pending != null) {
+                    for (SpillFile part : pending) {
+                        if (levels.pollFirst() > 0) {
+                            part.delete();
+                        }
+                    }
+                    pending = null;
+                    levels = null;
+                }
+            }
+        }
+        return new GroupAggIterator();
+    }
+
+}
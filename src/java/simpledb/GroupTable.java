@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Numbers the distinct group-by keys seen by an aggregator 0, 1, 2, ... in
+ * the order they first appear, so that the aggregator can keep its
+ * accumulators in primitive arrays indexed by group number.
+ * <p>
+ * Each field of a key is first reduced to a 32-bit code: an int is its own
+ * code, and a string is replaced by a dictionary code, so each distinct
+ * string is stored once. The codes of a key with one or two fields are
+ * packed into a long; longer keys are folded into a long two codes at a time,
+ * numbering each prefix in a table of its own. Groups are then found in an
+ * open-addressing hash table on primitive long keys with linear probing.
+ * With no group-by fields every tuple is in group 0.
+ */
+class GroupTable {
+
+    private final Type[] keyTypes;
+    /** groups of whole keys, and of the key prefixes of longer keys */
+    private final LongTable groups = new LongTable();
+    private final LongTable[] prefixes;
+    /** codes of the fields of each group's key, keyTypes.length per group */
+    private int[] groupCodes;
+
+    /** per string field: string -> code, and code -> string */
+    private final HashMap<String, Integer>[] codes;
+    private final ArrayList<String>[] strings;
+
+    /**
+     * @param keyTypes
+     *            the types of the group-by fields; empty if there is no
+     *            grouping
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    GroupTable(Type[] keyTypes) {
+        this.keyTypes = keyTypes.clone();
+        prefixes = new LongTable[Math.max(0, keyTypes.length - 2)];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = new LongTable();
+        }
+        groupCodes = new int[16 * Math.max(1, keyTypes.length)];
+        codes = new HashMap[keyTypes.length];
+        strings = new ArrayList[keyTypes.length];
+        for (int i = 0; i < keyTypes.length; i++) {
+            if (keyTypes[i] == Type.STRING_TYPE) {
+                codes[i] = new HashMap<String, Integer>();
+                strings[i] = new ArrayList<String>();
+            }
+        }
+    }
+
+    /** Return the number of group-by fields. */
+    int numKeyFields() {
+        return keyTypes.length;
+    }
+
+    /** Return the number of groups seen so far. */
+    int size() {
+        return groups.size();
+    }
+
+    /**
+     * Return the group number of the key made of the given fields of t,
+     * adding a new group if the key has not been seen; a new group gets
+     * number size()-1.
+     */
+    int groupOf(Tuple t, int[] fields) {
+        int n = keyTypes.length;
+        long key;
+        if (n == 0) {
+            key = 0;
+        } else {
+            key = code(0, t.getField(fields[0])) & 0xffffffffL;
+            for (int i = 1; i < n; i++) {
+                if (i >= 2) {
+                    key = prefixes[i - 2].groupOf(key);
+                }
+                key = key << 32 | (code(i, t.getField(fields[i])) & 0xffffffffL);
+            }
+        }
+        int before = groups.size();
+        int group = groups.groupOf(key);
+        if (group == before && n > 0) {
+            if ((group + 1) * n > groupCodes.length) {
+                groupCodes = Arrays.copyOf(groupCodes, groupCodes.length * 2);
+            }
+            for (int i = 0; i < n; i++) {
+                groupCodes[group * n + i] = code(i, t.getField(fields[i]));
+            }
+        }
+        return group;
+    }
+
+    /** Return field i of the key of the given group. */
+    Field keyOf(int group, int i) {
+        int code = groupCodes[group * keyTypes.length + i];
+        if (keyTypes[i] == Type.INT_TYPE) {
+            return new IntField(code);
+        }
+        return new StringField(strings[i].get(code), Type.STRING_LEN);
+    }
+
+    /** Return the 32-bit code of f as field i of a key. */
+    private int code(int i, Field f) {
+        if (keyTypes[i] == Type.INT_TYPE) {
+            return ((IntField) f).getValue();
+        }
+        String s = ((StringField) f).getValue();
+        Integer code = codes[i].get(s);
+        if (code == null) {
+            code = strings[i].size();
+            codes[i].put(s, code);
+            strings[i].add(s);
+        }
+        return code;
+    }
+
+    /**
+     * Open-addressing hash table that numbers distinct long keys in the
+     * order they are added.
+     */
+    private static class LongTable {
+        private static final int INITIAL_CAPACITY = 64;
+
+        /** slot -> key, and slot -> number or -1 if the slot is empty */
+        private long[] slotKeys = new long[INITIAL_CAPACITY];
+        private int[] slotNumbers = new int[INITIAL_CAPACITY];
+        private int mask = INITIAL_CAPACITY - 1;
+        private int size;
+
+        LongTable() {
+            Arrays.fill(slotNumbers, -1);
+        }
+
+        int size() {
+            return size;
+        }
+
+        /** Return the number of key, numbering it size()-1 if it is new. */
+        int groupOf(long key) {
+            int slot = hash(key) & mask;
+            while (slotNumbers[slot] != -1) {
+                if (slotKeys[slot] == key) {
+                    return slotNumbers[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            int number = size++;
+            slotKeys[slot] = key;
+            slotNumbers[slot] = number;
+            if (size * 4 > slotNumbers.length * 3) {
+                grow();
+            }
+            return number;
+        }
+
+        /** Double the number of slots, leaving the table at most 3/8 full. */
+        private void grow() {
+            long[] oldKeys = slotKeys;
+            int[] oldNumbers = slotNumbers;
+            slotKeys = new long[oldKeys.length * 2];
+            slotNumbers = new int[oldNumbers.length * 2];
+            Arrays.fill(slotNumbers, -1);
+            mask = slotNumbers.length - 1;
+            for (int i = 0; i < oldNumbers.length; i++) {
+                if (oldNumbers[i] != -1) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (slotNumbers[slot] != -1) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slotKeys[slot] = oldKeys[i];
+                    slotNumbers[slot] = oldNumbers[i];
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return (int) key;
+        }
+    }
+}
@@ -4,14 +4,47 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin builds a hash table on the left child and probes it with the
+ * right child, producing output as it goes. If the left child does not fit
+ * in the memory budget, both children are partitioned by a hash of the join
+ * key into temporary files (a Grace hash join), and matching partitions are
+ * joined one pair at a time; partitions that are still too big are split
+ * again with a different hash.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** number of partitions each spill or re-partition splits into */
+    private static final int FANOUT = 16;
+    /** re-partitioning levels tried before joining a partition in chunks */
+    private static final int MAX_DEPTH = 4;
+
+    private static volatile long defaultMemoryBudget = 32L << 20;
+
     private JoinPredicate p;
     private DbIterator[] children;
-    private ArrayList<Tuple> newTuples;
-    private Iterator<Tuple> newTupleIter;
+    private long memoryBudget = defaultMemoryBudget;
+
+    private transient TupleDesc td;
+    private transient long leftTupleBytes;
+    /** hash table over (part of) the left input, keyed on the join field */
+    private transient HashMap<Field, ArrayList<Tuple>> table;
+    private transient long tableBytes;
+
+    /** right input being probed: the right child, or a partition file */
+    private transient DbIterator probeChild;
+    private transient SpillFile.Reader probeReader;
+    private transient Tuple probe;
+    private transient ArrayList<Tuple> matches;
+    private transient int matchIndex;
+
+    /** partition being joined, its unread left side if it is chunked, and
+        the partitions still waiting */
+    private transient Partition current;
+    private transient SpillFile.Reader chunkReader;
+    private transient ArrayDeque<Partition> tasks;
+    private transient ArrayList<SpillFile> spills;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -54,49 +87,48 @@ public class HashEquiJoin extends Operator {
         return children[1].getTupleDesc().getFieldName(p.getField2());
     }
     
+    /**
+     * Set the number of bytes the join may use for its hash table. When the
+     * left input does not fit, both inputs are partitioned into temporary
+     * files that are joined a partition at a time.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = Math.max(1, bytes);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Set the memory budget of joins created from now on. */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = Math.max(1, bytes);
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         super.open();
         children[0].open();
         children[1].open();
-        HashMap<Integer, ArrayList<Tuple>> buckets = new HashMap<>();
-        Tuple currentHash;
-        int key;
-        newTuples = new ArrayList<>();
-        while (children[0].hasNext()){
-            currentHash = children[0].next();
-            key = currentHash.getField(p.getField1()).hashCode();
-            if (buckets.containsKey(key)){
-                buckets.get(key).add(currentHash);
-            }else {
-                ArrayList<Tuple> buck = new ArrayList<>();
-                buck.add(currentHash);
-                buckets.put(key, buck);
-            }
-        }
-        while (children[1].hasNext()){
-            currentHash = children[1].next();
-            key = currentHash.getField(p.getField2()).hashCode();
-            if (buckets.containsKey(key)){
-                for(Tuple join2: buckets.get(key)){
-                    if (p.filter(currentHash,join2)) {
-                        Tuple newTuple = new Tuple(getTupleDesc());
-                        Iterator<Field> t2Field = currentHash.fields();
-                        Iterator<Field> t1Field = join2.fields();
-                        for (int i = 0; i < join2.getTupleDesc().numFields(); i++) {
-                            newTuple.setField(i, t1Field.next());
-                        }
-                        for (int i = join2.getTupleDesc().numFields(); i < newTuple.getTupleDesc().numFields(); i++) {
-                            newTuple.setField(i, t2Field.next());
-                        }
-                        newTuples.add(newTuple);
-                    }
-                }
+        td = getTupleDesc();
+        leftTupleBytes = SpillFile.estimateBytes(children[0].getTupleDesc());
+        table = new HashMap<>();
+        tableBytes = 0;
+        tasks = new ArrayDeque<>();
+        spills = new ArrayList<>();
+
+        // build on the left child while it fits; if it all does, probe
+        // straight from the right child without touching disk
+        while (children[0].hasNext()) {
+            if (tableBytes + leftTupleBytes > memoryBudget) {
+                spillChildren();
+                advance();
+                return;
             }
+            addToTable(children[0].next());
         }
-        newTupleIter = newTuples.iterator();
-
+        probeChild = children[1];
     }
 
     public void close() {
@@ -104,6 +136,26 @@ public class HashEquiJoin extends Operator {
         super.close();
         children[0].close();
         children[1].close();
+        if (probeReader != null) {
+            probeReader.close();
+        }
+        if (chunkReader != null) {
+            chunkReader.close();
+        }
+        if (spills != null) {
+            for (SpillFile f : spills) {
+                f.delete();
+            }
+        }
+        spills = null;
+        tasks = null;
+        table = null;
+        matches = null;
+        probe = null;
+        probeChild = null;
+        probeReader = null;
+        chunkReader = null;
+        current = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -134,10 +186,218 @@ public class HashEquiJoin extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (newTupleIter.hasNext()){
-            return newTupleIter.next();
-        }else {
-            return null;
+        while (true) {
+            if (matches != null) {
+                while (matchIndex < matches.size()) {
+                    Tuple left = matches.get(matchIndex++);
+                    if (p.filter(left, probe)) {
+                        return Tuple.merge(td, left, probe);
+                    }
+                }
+                matches = null;
+            }
+            probe = nextProbe();
+            if (probe != null) {
+                matches = table.get(probe.getField(p.getField2()));
+                matchIndex = 0;
+            } else if (!advance()) {
+                return null;
+            }
+        }
+    }
+
+    /** Return the next tuple of the current probe input, or null. */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (probeChild != null) {
+            return probeChild.hasNext() ? probeChild.next() : null;
+        }
+        if (probeReader != null) {
+            return probeReader.hasNext() ? probeReader.next() : null;
+        }
+        return null;
+    }
+
+    /**
+     * The current probe input is used up: load the next chunk of an
+     * oversized partition, or start on the next partition.
+     *
+     * @return false if there is nothing left to join
+     */
+    private boolean advance() throws DbException {
+        probeChild = null;
+        if (probeReader != null) {
+            probeReader.close();
+            probeReader = null;
+        }
+        if (chunkReader != null) {
+            if (chunkReader.hasNext()) {
+                loadChunk(chunkReader);
+                probeReader = current.right.reader();
+                return true;
+            }
+            chunkReader.close();
+            chunkReader = null;
+        }
+        if (current != null) {
+            current.delete();
+            current = null;
+        }
+        while (!tasks.isEmpty()) {
+            Partition next = tasks.pop();
+            if (start(next)) {
+                current = next;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set up the join of one pair of partitions. If the left side fits in
+     * memory it becomes the hash table. Otherwise it is partitioned again
+     * with a different hash, or, once that stops helping, joined in
+     * memory-sized chunks against repeated passes over the right side.
+     *
+     * @return false if the pair was partitioned again and nothing is ready
+     */
+    private boolean start(Partition part) throws DbException {
+        table.clear();
+        tableBytes = 0;
+        if (part.left.size() * leftTupleBytes <= memoryBudget) {
+            SpillFile.Reader r = part.left.reader();
+            while (r.hasNext()) {
+                addToTable(r.next());
+            }
+            r.close();
+            probeReader = part.right.reader();
+            return true;
+        }
+        if (part.depth < MAX_DEPTH) {
+            repartition(part);
+            return false;
+        }
+        chunkReader = part.left.reader();
+        loadChunk(chunkReader);
+        probeReader = part.right.reader();
+        return true;
+    }
+
+    /** Fill the hash table from r until the memory budget is reached. */
+    private void loadChunk(SpillFile.Reader r) throws DbException {
+        table.clear();
+        tableBytes = 0;
+        do {
+            addToTable(r.next());
+        } while (r.hasNext() && tableBytes + leftTupleBytes <= memoryBudget);
+    }
+
+    private void addToTable(Tuple t) {
+        ArrayList<Tuple> bucket = table.get(t.getField(p.getField1()));
+        if (bucket == null) {
+            bucket = new ArrayList<>(2);
+            table.put(t.getField(p.getField1()), bucket);
+        }
+        bucket.add(t);
+        tableBytes += leftTupleBytes;
+    }
+
+    /**
+     * The left child does not fit in memory: write what has been read so
+     * far and the rest of both children to partition files.
+     */
+    private void spillChildren() throws DbException, TransactionAbortedException {
+        SpillFile[] left = newPartitions(children[0].getTupleDesc());
+        SpillFile[] right = newPartitions(children[1].getTupleDesc());
+        for (ArrayList<Tuple> bucket : table.values()) {
+            for (Tuple t : bucket) {
+                left[partitionOf(t.getField(p.getField1()), 0)].add(t);
+            }
+        }
+        table.clear();
+        tableBytes = 0;
+        while (children[0].hasNext()) {
+            Tuple t = children[0].next();
+            left[partitionOf(t.getField(p.getField1()), 0)].add(t);
+        }
+        while (children[1].hasNext()) {
+            Tuple t = children[1].next();
+            right[partitionOf(t.getField(p.getField2()), 0)].add(t);
+        }
+        pushPartitions(left, right, 0, Long.MAX_VALUE);
+    }
+
+    /** Split an oversized pair of partitions with the next level's hash. */
+    private void repartition(Partition part) throws DbException {
+        int depth = part.depth + 1;
+        SpillFile[] left = newPartitions(part.left.getTupleDesc());
+        SpillFile[] right = newPartitions(part.right.getTupleDesc());
+        SpillFile.Reader r = part.left.reader();
+        while (r.hasNext()) {
+            Tuple t = r.next();
+            left[partitionOf(t.getField(p.getField1()), depth)].add(t);
+        }
+        r.close();
+        r = part.right.reader();
+        while (r.hasNext()) {
+            Tuple t = r.next();
+            right[partitionOf(t.getField(p.getField2()), depth)].add(t);
+        }
+        r.close();
+        part.delete();
+        pushPartitions(left, right, depth, part.left.size());
+    }
+
+    /**
+     * Queue the non-empty pairs of partitions. A pair whose left side did
+     * not shrink at all is made of one heavily repeated key, which no hash
+     * can split, so it goes straight to chunked joining.
+     */
+    private void pushPartitions(SpillFile[] left, SpillFile[] right, int depth,
+            long parentSize) {
+        for (int i = 0; i < FANOUT; i++) {
+            if (left[i].size() == 0 || right[i].size() == 0) {
+                left[i].delete();
+                right[i].delete();
+                continue;
+            }
+            int d = left[i].size() == parentSize ? MAX_DEPTH : depth;
+            tasks.push(new Partition(left[i], right[i], d));
+        }
+    }
+
+    private SpillFile[] newPartitions(TupleDesc desc) throws DbException {
+        SpillFile[] parts = new SpillFile[FANOUT];
+        for (int i = 0; i < FANOUT; i++) {
+            parts[i] = new SpillFile(desc);
+            spills.add(parts[i]);
+        }
+        return parts;
+    }
+
+    /** Partition of a join key at a given recursion depth. */
+    private static int partitionOf(Field f, int depth) {
+        int h = f.hashCode() * 0x9E3779B9 + depth * 0x85EBCA6B;
+        h ^= h >>> 16;
+        h *= 0x7FEB352D;
+        h ^= h >>> 15;
+        return Math.floorMod(h, FANOUT);
+    }
+
+    /** A pair of partition files still to be joined. */
+    private static class Partition {
+        final SpillFile left;
+        final SpillFile right;
+        final int depth;
+
+        Partition(SpillFile left, SpillFile right, int depth) {
+            this.left = left;
+            this.right = right;
+            this.depth = depth;
+        }
+
+        void delete() {
+            left.delete();
+            right.delete();
         }
     }
 
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,6 +22,20 @@ public class HeapFile implements DbFile {
     public TupleDesc td;
     public DbFileIterator dbit;
     private int numPages;
+    private final PageStore store;
+
+    /** Approximate size of each mapped segment in memory-mapped mode. */
+    private static final long MAP_SEGMENT_BYTES = 64L << 20;
+
+    private volatile boolean memoryMapped;
+    /** Mapped segments of the file, replaced as a whole when one is
+        (re)mapped, so readers never see a partly updated array. */
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    /** Page size the current segments were laid out for. */
+    private int segmentPageSize;
+
+    /** Free slots per page, built the first time a tuple is inserted. */
+    private volatile FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -32,6 +48,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.td = td;
+        this.store = new PageStore(f, PageStore.Durability.NONE);
         this.numPages = numPages();
 //        this.dbit = f.iterator();
     }
@@ -72,17 +89,114 @@ public class HeapFile implements DbFile {
 //        throw new UnsupportedOperationException("implement this");
     }
 
+    /**
+     * Turn memory-mapped reads on or off. In memory-mapped mode, readPage
+     * decodes pages straight from a mapping of the file, which saves a copy
+     * and an allocation per page. This suits large read-mostly tables that
+     * are scanned often. Writes still go through the regular page store, and
+     * the mapping sees them.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            unmap();
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    public void force() throws IOException {
+        store.force();
+    }
+
+    /**
+     * Release the mapped segments and close the file. The file is reopened
+     * if the table is used again.
+     */
+    public void close() throws IOException {
+        unmap();
+        store.close();
+    }
+
+    /**
+     * Drop all mapped segments. Pages never keep a reference to the mapping
+     * (they are decoded out of it when read), so once the segments are
+     * unreachable the mapping is released by the garbage collector, and no
+     * page can touch it afterwards.
+     */
+    private synchronized void unmap() {
+        segments = new MappedByteBuffer[0];
+    }
+
+    /**
+     * Return a buffer over the bytes of the given page in the mapped file,
+     * mapping or extending its segment if needed, or null if the page lies
+     * past the end of the file.
+     */
+    private ByteBuffer mappedPage(int pageNo) throws IOException {
+        int pagesize = BufferPool.getPageSize();
+        long segmentBytes = Math.max(1, MAP_SEGMENT_BYTES / pagesize) * pagesize;
+        long offset = (long) pageNo * pagesize;
+        int index = (int) (offset / segmentBytes);
+        int within = (int) (offset % segmentBytes);
+
+        MappedByteBuffer[] segs = segments;
+        MappedByteBuffer seg = index < segs.length ? segs[index] : null;
+        if (seg == null || seg.capacity() < within + pagesize || segmentPageSize != pagesize) {
+            seg = mapSegment(index, segmentBytes, within + pagesize, pagesize);
+            if (seg == null) {
+                return null;
+            }
+        }
+        // duplicate so concurrent readers do not share a position
+        ByteBuffer buf = seg.duplicate();
+        buf.position(within);
+        buf.limit(within + pagesize);
+        return buf.slice();
+    }
+
+    /**
+     * Map segment index so that it covers at least the first need bytes,
+     * remapping it if the file has grown since it was mapped.
+     */
+    private synchronized MappedByteBuffer mapSegment(int index, long segmentBytes,
+            int need, int pagesize) throws IOException {
+        if (segmentPageSize != pagesize) {
+            segments = new MappedByteBuffer[0];
+            segmentPageSize = pagesize;
+        }
+        MappedByteBuffer[] segs = segments;
+        if (index < segs.length && segs[index] != null && segs[index].capacity() >= need) {
+            return segs[index];
+        }
+        long start = index * segmentBytes;
+        long size = Math.min(segmentBytes, store.size() - start);
+        if (size < need) {
+            return null;
+        }
+        MappedByteBuffer seg = store.map(start, size);
+        segs = Arrays.copyOf(segs, Math.max(segs.length, index + 1));
+        segs[index] = seg;
+        segments = segs;
+        return seg;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "rws");
+            if (memoryMapped) {
+                ByteBuffer data = mappedPage(pid.pageNumber());
+                if (data != null) {
+                    return pageRead(new HeapPage((HeapPageId) pid, data));
+                }
+            }
             int pagesize = BufferPool.getPageSize();
             byte[] data = new byte[pagesize];
-            raf.seek(pid.pageNumber()*pagesize);
-//            long mark = raf.getFilePointer();
-            raf.read(data, 0, pagesize);
-            return (Page) new HeapPage((HeapPageId) pid, data);
+            store.read(data, (long) pid.pageNumber()*pagesize);
+            return pageRead(new HeapPage((HeapPageId) pid, data));
         }catch (Exception e){
             throw new IllegalArgumentException();
         }
@@ -93,18 +207,68 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "rws");
             int pagesize = BufferPool.getPageSize();
-            byte[] data = new byte[pagesize];
-            raf.seek(page.getId().pageNumber()*pagesize);
-//            long mark = raf.getFilePointer();
-            raf.write(page.getPageData(), 0, pagesize);
+            store.write(page.getPageData(), (long) page.getId().pageNumber()*pagesize);
             this.numPages = numPages();
         }catch (IOException e){
             throw e;
         }
     }
 
+    /** Refresh the free-space map from a page just read from disk. */
+    private HeapPage pageRead(HeapPage page) {
+        FreeSpaceMap map = freeSpace;
+        if (map != null) {
+            map.set(page.getId().pageNumber(), page.getNumEmptySlots());
+        }
+        return page;
+    }
+
+    /**
+     * Called by HeapPage when a tuple is inserted into or deleted from one
+     * of this file's pages.
+     */
+    void freeSpaceChanged(int pageNo, int delta) {
+        FreeSpaceMap map = freeSpace;
+        if (map != null) {
+            map.adjust(pageNo, delta);
+        }
+    }
+
+    /**
+     * Return the free-space map, building it from the page headers on disk
+     * if this is the first time it is needed. The headers are read straight
+     * from the file, without going through the BufferPool, so no locks are
+     * taken; pages modified in the pool since are corrected as they are
+     * used.
+     */
+    private FreeSpaceMap freeSpaceMap() throws IOException {
+        FreeSpaceMap map = freeSpace;
+        if (map != null) {
+            return map;
+        }
+        synchronized (this) {
+            if (freeSpace == null) {
+                int pagesize = BufferPool.getPageSize();
+                int slots = HeapPage.slotsPerPage(td);
+                byte[] header = new byte[(slots + 7) / 8];
+                int n = numPages();
+                map = new FreeSpaceMap(n);
+                for (int p = 0; p < n; p++) {
+                    Arrays.fill(header, (byte) 0);
+                    store.read(header, (long) p * pagesize);
+                    int used = 0;
+                    for (byte b : header) {
+                        used += Integer.bitCount(b & 0xff);
+                    }
+                    map.set(p, slots - used);
+                }
+                freeSpace = map;
+            }
+            return freeSpace;
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -120,21 +284,25 @@ public class HeapFile implements DbFile {
         HeapPageId pid;
         HeapPage page;
         ArrayList<Page> dirty = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
+        // only visit pages the free-space map says have room; the map is
+        // approximate, so each one is still checked under its write lock
+        FreeSpaceMap map = freeSpaceMap();
+        for (int i = map.pageWithRoom(0); i >= 0 && i < numPages(); i = map.pageWithRoom(i + 1)) {
             pid = new HeapPageId(getId(),i);
-            page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
+            // a page this transaction already locked may hold its changes,
+            // so only give up the lock if it was taken just for this check
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
+            page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
 
             if (page.getNumEmptySlots() > 0){
-                synchronized (page){
-                    if (page.getNumEmptySlots()>0){
-                        page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                        page.insertTuple(t);
-                        dirty.add(page);
-                        return dirty;
-                    }
-                }
+                page.insertTuple(t);
+                dirty.add(page);
+                return dirty;
+            }
+            map.set(i, 0);
+            if (!held) {
+                Database.getBufferPool().releasePage(tid,pid);
             }
-            Database.getBufferPool().releasePage(tid,pid);
         }
 
         synchronized (this){
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -42,10 +43,23 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Create a HeapPage by decoding the bytes between data's position and
+     * limit, in the same format as {@link #HeapPage(HeapPageId, byte[])}.
+     * The page does not keep a reference to data, so data may be a slice of
+     * a mapped file that is unmapped later.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, new DataInputStream(new ByteBufferInputStream(data)));
+    }
+
+    private HeapPage(HeapPageId id, DataInputStream dis) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
@@ -62,7 +76,8 @@ public class HeapPage implements Page {
         }
         dis.close();
 
-        setBeforeImage();
+        // the before image is taken lazily, the first time the page is
+        // modified; until then it is the page itself
     }
 
     /** Retrieve the number of tuples on this page.
@@ -70,10 +85,15 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        return (int) Math.floorDiv(BufferPool.getPageSize()*8,td.getSize()*8+1);
+        return slotsPerPage(td);
 
     }
 
+    /** Number of tuple slots on a page of a table with the given TupleDesc. */
+    static int slotsPerPage(TupleDesc td) {
+        return (int) Math.floorDiv(BufferPool.getPageSize()*8,td.getSize()*8+1);
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
@@ -94,6 +114,9 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                oldDataRef = getPageData();
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -110,6 +133,16 @@ public class HeapPage implements Page {
         }
     }
 
+    /** Take the before image now if the page has not been modified yet. */
+    private void ensureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
+        }
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -254,7 +287,9 @@ public class HeapPage implements Page {
         }else if (!isSlotUsed(t.getRecordId().tupleno())){
             throw new DbException("Tuple slot is already empty");
         }else{
+            ensureBeforeImage();
             markSlotUsed(t.getRecordId().tupleno(), false);
+            freeSpaceChanged(1);
         }
 
 
@@ -276,11 +311,13 @@ public class HeapPage implements Page {
         }else if (!t.getTupleDesc().equals(td)){
             throw new DbException("Tupledesc is mismatch");
         }else {
+            ensureBeforeImage();
             for (int i = 0; i < getNumTuples(); i++) {
                 if (!isSlotUsed(i)){
                     tuples[i] = t;
                     t.setRecordId(new RecordId(pid, i));
                     markSlotUsed(i, true);
+                    freeSpaceChanged(-1);
                     break;
                 }
             }
@@ -290,6 +327,14 @@ public class HeapPage implements Page {
         }
     }
 
+    /** Tell the table's free-space map that a slot was filled or freed. */
+    private void freeSpaceChanged(int delta) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).freeSpaceChanged(pid.pageNumber(), delta);
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
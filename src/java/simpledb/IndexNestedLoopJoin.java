@@ -0,0 +1,251 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins each tuple of its left (outer) child with the
+ * matching tuples of a table stored in a B+ tree keyed on the join field, by
+ * probing the tree with {@link BTreeFile#indexIterator} instead of scanning
+ * the table.
+ * <p>
+ * The right child must be a scan of that table, optionally under Filters
+ * (see {@link #canProbe}); it is never opened, but its filter predicates are
+ * applied to the tuples the probes return. Outer tuples are read in batches
+ * and sorted on the join key, so successive probes walk the leaves in order
+ * and mostly hit pages already in the buffer pool, and an equality probe is
+ * reused by outer tuples with the same key.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** outer tuples sorted and probed together */
+    static final int BATCH_SIZE = 1024;
+
+    private JoinPredicate p;
+    private DbIterator[] children;
+
+    private final TransactionId tid;
+    private final BTreeFile index;
+    private final ArrayList<Predicate> filters = new ArrayList<>();
+
+    private transient TupleDesc td;
+    private transient Tuple[] batch;
+    private transient int batchSize;
+    private transient int batchIndex;
+    private transient Tuple outer;
+    /** matches of an equality probe, kept while the outer key repeats */
+    private transient ArrayList<Tuple> matches;
+    private transient Field matchesKey;
+    private transient int matchIndex;
+    /** open range probe */
+    private transient DbFileIterator probe;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be =, &lt;, &lt;=, &gt; or &gt;=
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) relation, which must satisfy
+     *            {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!canProbe(child2, p.getField2(), p.getOperator())) {
+            throw new IllegalArgumentException("inner child is not an indexed scan on field "
+                    + p.getField2());
+        }
+        this.p = p;
+        this.children = new DbIterator[] { child1, child2 };
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        SeqScan scan = (SeqScan) it;
+        this.tid = scan.getTransactionId();
+        this.index = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(scan.getTableName()));
+    }
+
+    /**
+     * Return true if inner can be probed for the given join operator: it is
+     * a SeqScan, optionally under Filters, of a B+ tree keyed on field.
+     */
+    public static boolean canProbe(DbIterator inner, int field, Predicate.Op op) {
+        if (op == Predicate.Op.LIKE || op == Predicate.Op.NOT_EQUALS) {
+            return false;
+        }
+        while (inner instanceof Filter) {
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        if (!(inner instanceof SeqScan)) {
+            return false;
+        }
+        try {
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(((SeqScan) inner).getTableName()));
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return children[0].getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return children[1].getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(children[0].getTupleDesc(), children[1].getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        children[0].open();
+        super.open();
+        td = getTupleDesc();
+        batch = new Tuple[BATCH_SIZE];
+        batchSize = 0;
+        batchIndex = 0;
+        outer = null;
+        matches = null;
+        matchesKey = null;
+    }
+
+    public void close() {
+        super.close();
+        children[0].close();
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        batch = null;
+        outer = null;
+        matches = null;
+        matchesKey = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with {@link Join}, the result is the concatenation of
+     * the joining outer and inner tuples.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matchIndex < matches.size()) {
+                return Tuple.merge(td, outer, matches.get(matchIndex++));
+            }
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    Tuple inner = probe.next();
+                    if (accept(inner)) {
+                        return Tuple.merge(td, outer, inner);
+                    }
+                }
+                probe.close();
+                probe = null;
+            }
+            if (!nextOuter()) {
+                return null;
+            }
+            Field key = outer.getField(p.getField1());
+            if (p.getOperator() == Predicate.Op.EQUALS) {
+                if (matchesKey == null || !key.compare(Predicate.Op.EQUALS, matchesKey)) {
+                    matches = lookup(key);
+                    matchesKey = key;
+                }
+                matchIndex = 0;
+            } else {
+                probe = index.indexIterator(tid, new IndexPredicate(innerOp(p.getOperator()), key));
+                probe.open();
+            }
+        }
+    }
+
+    /** Collect the inner tuples equal to key. */
+    private ArrayList<Tuple> lookup(Field key) throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> found = new ArrayList<>();
+        DbFileIterator it = index.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        while (it.hasNext()) {
+            Tuple inner = it.next();
+            if (accept(inner)) {
+                found.add(inner);
+            }
+        }
+        it.close();
+        return found;
+    }
+
+    private boolean accept(Tuple inner) {
+        if (!p.filter(outer, inner)) {
+            return false;
+        }
+        for (Predicate f : filters) {
+            if (!f.filter(inner)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Advance to the next outer tuple, reading and sorting a new batch if needed. */
+    private boolean nextOuter() throws DbException, TransactionAbortedException {
+        if (batchIndex == batchSize) {
+            Arrays.fill(batch, 0, batchSize, null);
+            batchSize = 0;
+            batchIndex = 0;
+            while (batchSize < batch.length && children[0].hasNext()) {
+                batch[batchSize++] = children[0].next();
+            }
+            if (batchSize == 0) {
+                return false;
+            }
+            Arrays.sort(batch, 0, batchSize, new TupleComparator(p.getField1(), true));
+        }
+        outer = batch[batchIndex++];
+        return true;
+    }
+
+    /** The operator to probe the inner key with, for outer OP inner. */
+    private static Predicate.Op innerOp(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children;
+    }
+}
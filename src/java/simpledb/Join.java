@@ -4,14 +4,24 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This is a block nested loops join: it reads a block of the left child
+ * that fills the buffer pages a scan does not need, then streams the right
+ * child past it, producing matches as it goes.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate p;
     private  DbIterator[] children;
-    private ArrayList<Tuple> tuples = new ArrayList<>();
-    private Iterator<Tuple> newtuples;
+
+    private transient TupleDesc td;
+    /** current block of the left child, each joined with one pass over
+        the right child */
+    private transient Tuple[] block;
+    private transient int blockSize;
+    private transient int blockIndex;
+    private transient Tuple right;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -73,101 +83,12 @@ public class Join extends Operator {
         children[0].open();
         children[1].open();
         super.open();
-//        while (children[0].hasNext()){
-//            Tuple currentOuter = children[0].next();
-//            while (children[1].hasNext()){
-//                Tuple currentInner = children[1].next();
-//                if (p.filter(currentOuter,currentInner)) {
-//                    Tuple newTuple = new Tuple(getTupleDesc());
-//                    Iterator<Field> t1Field = currentOuter.fields();
-//                    Iterator<Field> t2Field = currentInner.fields();
-//                    for (int i = 0; i < currentOuter.getTupleDesc().numFields(); i++) {
-//                        newTuple.setField(i, t1Field.next());
-//                    }
-//                    for (int i = currentOuter.getTupleDesc().numFields(); i < newTuple.getTupleDesc().numFields(); i++) {
-//                        newTuple.setField(i, t2Field.next());
-//                    }
-//                    tuples.add(newTuple);
-//                }
-//            }
-//            children[1].rewind();
-//        }
-//        newtuples = tuples.iterator();
-        HashMap<Integer, ArrayList<Tuple>> buckets = new HashMap<>();
-        Tuple currentLeft;
-        Tuple currentRight;
-        int key = 0;
-        tuples = new ArrayList<>();
-        Tuple[] pageLeft = new Tuple[BufferPool.getPageSize()/children[0].getTupleDesc().getSize()];
-        ArrayList<Tuple[]> blocks = new ArrayList<>();
-        while (children[0].hasNext()) {
-            if (key == 0){
-                pageLeft = new Tuple[BufferPool.getPageSize()];
-            }
-            currentLeft = children[0].next();
-            pageLeft[key++] = currentLeft;
-            if (key == BufferPool.getPageSize() || !children[0].hasNext()) {
-                blocks.add(pageLeft);
-            }
-            if (blocks.size() == BufferPool.DEFAULT_PAGES - 2 || !children[0].hasNext()){
-                children[1].rewind();
-                while (children[1].hasNext()) {
-                    currentRight = children[1].next();
-                    for (Tuple[] tupleInPage: blocks){
-                        for (Tuple left: tupleInPage){
-                            if (left == null){
-                                break;
-                            }
-                            if (p.filter(left, currentRight)) {
-                                Tuple newTuple = new Tuple(getTupleDesc());
-                                Iterator<Field> t2Field = currentRight.fields();
-                                Iterator<Field> t1Field = left.fields();
-                                for (int j = 0; j < left.getTupleDesc().numFields(); j++) {
-                                    newTuple.setField(j, t1Field.next());
-                                }
-                                for (int j = left.getTupleDesc().numFields(); j < newTuple.getTupleDesc().numFields(); j++) {
-                                    newTuple.setField(j, t2Field.next());
-                                }
-                                tuples.add(newTuple);
-                            }
-                        }
-                    }
-
-                }
-                blocks = new ArrayList<>();
-                key = 0;
-            }
-        }
-//            key = currentHash.getField(p.getField1()).hashCode();
-//            if (buckets.containsKey(key)){
-//                buckets.get(key).add(currentHash);
-//            }else {
-//                ArrayList<Tuple> buck = new ArrayList<>();
-//                buck.add(currentHash);
-//                buckets.put(key, buck);
-//            }
-//        }
-//        while (children[1].hasNext()){
-//            currentHash = children[1].next();
-//            key = currentHash.getField(p.getField2()).hashCode();
-//                for(Map.Entry<Integer, ArrayList<Tuple>> entries: buckets.entrySet()){
-//                    if (p.filter(entries.getValue().get(0), currentHash)) {
-//                        for (Tuple join2: entries.getValue()){
-//                            Tuple newTuple = new Tuple(getTupleDesc());
-//                            Iterator<Field> t2Field = currentHash.fields();
-//                            Iterator<Field> t1Field = join2.fields();
-//                            for (int i = 0; i < join2.getTupleDesc().numFields(); i++) {
-//                                newTuple.setField(i, t1Field.next());
-//                            }
-//                            for (int i = join2.getTupleDesc().numFields(); i < newTuple.getTupleDesc().numFields(); i++) {
-//                                newTuple.setField(i, t2Field.next());
-//                            }
-//                            tuples.add(newTuple);
-//                        }
-//                    }
-//                }
-//        }
-        newtuples = tuples.iterator();
+        td = getTupleDesc();
+        // keep as many left tuples as fit in the pages a scan does not need
+        int perPage = Math.max(1, BufferPool.getPageSize() / children[0].getTupleDesc().getSize());
+        block = new Tuple[Math.max(1, (BufferPool.DEFAULT_PAGES - 2) * perPage)];
+        right = null;
+        loadBlock();
     }
 
     public void close() {
@@ -175,6 +96,9 @@ public class Join extends Operator {
         super.close();
         children[0].close();
         children[1].close();
+        block = null;
+        blockSize = 0;
+        right = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -204,15 +128,41 @@ public class Join extends Operator {
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (newtuples.hasNext()){
-            return newtuples.next();
-        }else{
-            return null;
+        while (blockSize > 0) {
+            if (right != null) {
+                while (blockIndex < blockSize) {
+                    Tuple left = block[blockIndex++];
+                    if (p.filter(left, right)) {
+                        return Tuple.merge(td, left, right);
+                    }
+                }
+                right = null;
+            }
+            if (children[1].hasNext()) {
+                right = children[1].next();
+                blockIndex = 0;
+            } else if (loadBlock()) {
+                children[1].rewind();
+            } else {
+                return null;
+            }
         }
-
-
+        return null;
     }
 
+    /**
+     * Read the next block of the left child.
+     *
+     * @return false if the left child is used up
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        Arrays.fill(block, 0, blockSize, null);
+        blockSize = 0;
+        while (blockSize < block.length && children[0].hasNext()) {
+            block[blockSize++] = children[0].next();
+        }
+        return blockSize > 0;
+    }
 
     @Override
     public DbIterator[] getChildren() {
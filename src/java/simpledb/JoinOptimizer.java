@@ -68,7 +68,40 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        LogicalJoinNode.Method method = lj.method;
+        if (method == LogicalJoinNode.Method.INDEX
+                && !IndexNestedLoopJoin.canProbe(plan2, t2id, lj.p)) {
+            method = null;
+        }
+        if (method == null) {
+            // not costed by orderJoins: merge inputs that are already
+            // sorted, hash other equality joins, and sort for range joins
+            boolean sorted = SortMergeJoin.isSortedOn(plan1, t1id)
+                    && SortMergeJoin.isSortedOn(plan2, t2id);
+            if (lj.p == Predicate.Op.EQUALS) {
+                method = sorted ? LogicalJoinNode.Method.SORT_MERGE
+                        : LogicalJoinNode.Method.HASH;
+            } else if (SortMergeJoin.supports(lj.p)) {
+                method = LogicalJoinNode.Method.SORT_MERGE;
+            } else {
+                method = LogicalJoinNode.Method.NESTED_LOOP;
+            }
+        }
+
+        switch (method) {
+        case INDEX:
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        default:
+            j = new Join(p,plan1,plan2);
+            break;
+        }
 
         return j;
 
@@ -102,25 +135,154 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)}, with the cheapest of the algorithms
+     * {@link #joinCosts} considers.
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean outerIsBase, boolean innerIsBase) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
+        }
+        double best = Double.MAX_VALUE;
+        for (double cost : joinCosts(j, card1, card2, cost1, cost2, outerIsBase, innerIsBase)) {
+            best = Math.min(best, cost);
+        }
+        return best;
+    }
+
+    /**
+     * Return the join algorithm estimateJoinCost found cheapest for a join,
+     * which instantiateJoin then uses. On a tie an index join is preferred,
+     * then a merge join, which needs no hash table. Returns null for a
+     * subquery, whose cost is not broken down by algorithm.
+     */
+    private LogicalJoinNode.Method chooseJoin(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean outerIsBase, boolean innerIsBase) {
+        if (j instanceof LogicalSubplanJoinNode) {
+            return null;
+        }
+        double[] costs = joinCosts(j, card1, card2, cost1, cost2, outerIsBase, innerIsBase);
+        LogicalJoinNode.Method best = LogicalJoinNode.Method.INDEX;
+        for (LogicalJoinNode.Method m : LogicalJoinNode.Method.values()) {
+            if (costs[m.ordinal()] < costs[best.ordinal()]) {
+                best = m;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of a join with each join algorithm, indexed by
+     * {@link LogicalJoinNode.Method#ordinal}, or Double.MAX_VALUE for an
+     * algorithm that cannot evaluate it. A side is only taken to be sorted,
+     * and the right-hand side only to be probed through its index, when
+     * outerIsBase or innerIsBase says that it is a base table rather than
+     * the result of other joins.
+     */
+    private double[] joinCosts(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean outerIsBase, boolean innerIsBase) {
+        double[] costs = new double[LogicalJoinNode.Method.values().length];
+        Arrays.fill(costs, Double.MAX_VALUE);
+        // Insert your code here.
+        // HINT: You may need to use the variable "j" if you implemented
+        // a join algorithm that's more complicated than a basic
+        // nested-loops join.
 //            try {
-            int tableid = p.getTableId(j.t1Alias) != null?p.getTableId(j.t1Alias):
-                    Database.getCatalog().getTableId(j.t1Alias);
-            int singleBlock = BufferPool.getPageSize()/Database.getCatalog().getTupleDesc(tableid).getSize();
-            return cost1 + Math.ceil((double)card1/(double)singleBlock) * cost2+ card1 * card2;
+        int tableid = p.getTableId(j.t1Alias) != null?p.getTableId(j.t1Alias):
+                Database.getCatalog().getTableId(j.t1Alias);
+        int singleBlock = BufferPool.getPageSize()/Database.getCatalog().getTupleDesc(tableid).getSize();
+        costs[LogicalJoinNode.Method.NESTED_LOOP.ordinal()] =
+                cost1 + Math.ceil((double)card1/(double)singleBlock) * cost2+ card1 * card2;
+        if (j.p == Predicate.Op.EQUALS) {
+            // hash join: read both sides once, one insert or probe per
+            // tuple; a merge join only wins when both sides are sorted
+            costs[LogicalJoinNode.Method.HASH.ordinal()] = cost1 + cost2 + card1 + card2;
+            costs[LogicalJoinNode.Method.SORT_MERGE.ordinal()] = cost1 + cost2
+                    + sortCost(j.t1Alias, j.f1PureName, card1, outerIsBase)
+                    + sortCost(j.t2Alias, j.f2PureName, card2, innerIsBase) + card1 + card2;
+        } else if (SortMergeJoin.supports(j.p)) {
+            // merge join on a range predicate: sort both sides, then
+            // every comparison made produces an output tuple
+            costs[LogicalJoinNode.Method.SORT_MERGE.ordinal()] = cost1 + cost2
+                    + sortCost(j.t1Alias, j.f1PureName, card1, outerIsBase)
+                    + sortCost(j.t2Alias, j.f2PureName, card2, innerIsBase) + card1 + card2
+                    + estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
+                            j.f1PureName, j.f2PureName, card1, card2, false, false,
+                            null, null);
+        }
+        if (innerIsBase) {
+            costs[LogicalJoinNode.Method.INDEX.ordinal()] = indexJoinCost(j, card1, cost1);
+        }
 //            }catch (NullPointerException e){
 //                return cost1 + 1 * cost2+ card1 * card2;
 //            }
+        return costs;
+    }
+
+    /**
+     * Cost of an index nested-loop join that probes the B+ tree on the
+     * right-hand table once per left-hand tuple, or Double.MAX_VALUE if that
+     * table is not a B+ tree keyed on the join field.
+     * <p>
+     * Each probe reads one root-to-leaf path, so a probe costs the height of
+     * the tree in page reads, estimated from the number of pages and the
+     * fan-out of an internal page. Probes are made in key order a batch at a
+     * time, so a batch never reads more than the whole tree.
+     */
+    private double indexJoinCost(LogicalJoinNode j, int card1, double cost1) {
+        if (!SortMergeJoin.supports(j.p)) {
+            return Double.MAX_VALUE;
+        }
+        Integer tableid = p.getTableId(j.t2Alias);
+        if (tableid == null) {
+            return Double.MAX_VALUE;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile)) {
+            return Double.MAX_VALUE;
+        }
+        BTreeFile tree = (BTreeFile) f;
+        if (!j.f2PureName.equals(f.getTupleDesc().getFieldName(tree.keyField()))) {
+            return Double.MAX_VALUE;
+        }
+        int pages = Math.max(1, tree.numPages());
+        double pageCost = TableStats.IOCOSTPERPAGE;
+        int height = tree.estimateHeight();
+        double batches = Math.ceil((double) card1 / IndexNestedLoopJoin.BATCH_SIZE);
+        double pagesRead = Math.min((double) card1 * height, batches * (pages + height));
+        return cost1 + pagesRead * pageCost + card1;
+    }
 
+    /**
+     * CPU cost of sorting card tuples of the given table on the given
+     * field, or 0 if a scan of the table already returns them in that order
+     * (the table is a B+ tree keyed on the field). A side that is the result
+     * of other joins (isBase false) is always sorted.
+     */
+    private double sortCost(String alias, String fieldPureName, int card, boolean isBase) {
+        Integer tableid = isBase ? p.getTableId(alias) : null;
+        if (tableid != null) {
+            DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+            if (f instanceof BTreeFile) {
+                TupleDesc desc = f.getTupleDesc();
+                for (int i = 0; i < desc.numFields(); i++) {
+                    if (fieldPureName.equals(desc.getFieldName(i))) {
+                        if (((BTreeFile) f).keyField() == i) {
+                            return 0;
+                        }
+                        break;
+                    }
+                }
+            }
         }
+        return card * (Math.log(Math.max(card, 2)) / Math.log(2));
     }
 
     /**
@@ -261,6 +423,9 @@ public class JoinOptimizer {
         int bestCard = 0;
         int count = 0;
         Vector<LogicalJoinNode> bestPlan = null;
+        if (joins.isEmpty()) {
+            return joins; // single-table query
+        }
         for (int i = 1; i <= joins.size(); i ++) {
             if (i == joins.size()){
                 Set<LogicalJoinNode> s1 = new HashSet<>(joins);
@@ -386,13 +551,13 @@ public class JoinOptimizer {
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
+            t1cost = scanCost(stats, j.t1Alias, table1Name);
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
+            t2cost = table2Alias == null ? 0 : scanCost(stats, table2Alias,
+                    table2Name);
             t2card = table2Alias == null ? 0 : stats.get(table2Name)
                     .estimateTableCardinality(
                             filterSelectivities.get(j.t2Alias));
@@ -419,8 +584,8 @@ public class JoinOptimizer {
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
 
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
+                t2cost = j.t2Alias == null ? 0 : scanCost(stats, j.t2Alias,
+                        table2Name);
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateTableCardinality(
                                 filterSelectivities.get(j.t2Alias));
@@ -434,7 +599,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
+                t1cost = scanCost(stats, j.t1Alias, table1Name);
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
@@ -446,11 +611,15 @@ public class JoinOptimizer {
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        // case where prevbest is left; only a base table can be probed
+        // through its index
+        boolean t1IsBase = news.isEmpty() || !doesJoin(prevBest, table1Alias);
+        boolean t2IsBase = news.isEmpty() || !doesJoin(prevBest, table2Alias);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t1IsBase, t2IsBase);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t2IsBase, t1IsBase);
+        LogicalJoinNode.Method method = chooseJoin(j, t1card, t2card, t1cost, t2cost, t1IsBase, t2IsBase);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -458,6 +627,7 @@ public class JoinOptimizer {
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            method = chooseJoin(j2, t2card, t1card, t2cost, t1cost, t2IsBase, t1IsBase);
         }
         if (cost1 >= bestCostSoFar)
             return null;
@@ -468,10 +638,25 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
+        if (method != null) {
+            // j may be shared with other cached plans, so mark a copy
+            j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+            j.method = method;
+        }
         cc.plan.addElement(j); // prevbest is left -- add new join to end
         return cc;
     }
 
+    /**
+     * Cost of reading the table with the given alias through the access path
+     * the plan chose for it, or of scanning it if no choice has been made.
+     */
+    private double scanCost(HashMap<String, TableStats> stats, String alias,
+            String tableName) {
+        Double cost = p.getScanCost(alias);
+        return cost != null ? cost : stats.get(tableName).estimateScanCost();
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
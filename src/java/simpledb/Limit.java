@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit returns at most a given number of tuples of its child, after skipping
+ * the first offset of them (SQL LIMIT ... OFFSET ...). It stops pulling from
+ * the child as soon as the limit is reached, so a scan under it ends early.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int limit;
+    private final int offset;
+
+    private transient int returned;
+    private transient boolean skipped;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the most tuples to return
+     * @param offset
+     *            the number of leading tuples to skip
+     * @param child
+     *            the tuples to limit
+     */
+    public Limit(int limit, int offset, DbIterator child) {
+        if (limit < 0 || offset < 0) {
+            throw new IllegalArgumentException("negative LIMIT or OFFSET");
+        }
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+        returned = 0;
+        skipped = false;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = 0;
+        skipped = false;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned >= limit) {
+            return null;
+        }
+        if (!skipped) {
+            for (int i = 0; i < offset && child.hasNext(); i++) {
+                child.next();
+            }
+            skipped = true;
+        }
+        if (!child.hasNext()) {
+            return null;
+        }
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
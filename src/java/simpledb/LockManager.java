@@ -0,0 +1,539 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager implements page-level shared / exclusive locking for the
+ * BufferPool.
+ * <p>
+ * Every locked page has a lock entry with the set of holding transactions
+ * and a FIFO queue of pending requests. A request is granted when it is
+ * compatible with the current holders and no incompatible request is queued
+ * in front of it, so writers are not starved by a stream of readers. Blocked
+ * requests wait on a per-page condition and are woken only when a lock on
+ * that page is released, instead of polling.
+ * <p>
+ * A transaction holding a shared lock may upgrade it to an exclusive lock;
+ * upgrade requests are queued ahead of ordinary requests, since the upgrader
+ * already holds the page.
+ * <p>
+ * The lock table is split into stripes by PageId, each with its own latch,
+ * so that requests for pages in different stripes never contend. The
+ * BufferPool uses one stripe per buffer pool partition.
+ * <p>
+ * Deadlocks are detected with a waits-for graph. A blocked transaction waits
+ * for the holders of the page it requested and for the conflicting requests
+ * queued in front of it. The edges are derived from the wait queues, and the
+ * graph is searched for a cycle every time a request blocks. When one is
+ * found, a victim is chosen according to the {@link VictimPolicy} and gets a
+ * {@link DeadlockException}. Searches are serialized by a separate graph
+ * lock and latch one stripe at a time, never while holding another latch.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Disables the wait timeout; deadlocks are left to the waits-for graph. */
+    public static final long NO_TIMEOUT = 0;
+
+    /** How the transaction to abort is chosen when a deadlock is found. */
+    public enum VictimPolicy {
+        /** abort the transaction that started last */
+        YOUNGEST,
+        /** abort the transaction holding the fewest locks */
+        FEWEST_LOCKS,
+        /** abort the transaction that has been granted the fewest page accesses */
+        LEAST_WORK
+    }
+
+    /** A pending lock request in a page's wait queue. */
+    private static class LockRequest {
+        final TransactionId tid;
+        final PageId pid;
+        final boolean exclusive;
+
+        LockRequest(TransactionId tid, PageId pid, boolean exclusive) {
+            this.tid = tid;
+            this.pid = pid;
+            this.exclusive = exclusive;
+        }
+    }
+
+    /** Lock state of a single page, protected by its stripe's latch. */
+    private static class PageLock {
+        final Set<TransactionId> holders = new HashSet<>();
+        boolean exclusive;
+        final LinkedList<LockRequest> waiters = new LinkedList<>();
+        final Condition released;
+
+        PageLock(Condition released) {
+            this.released = released;
+        }
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+    }
+
+    /** A partition of the lock table. */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<PageId, PageLock> locks = new HashMap<>();
+    }
+
+    /** Lock state of a single transaction. */
+    private static class TxnLocks {
+        final Set<PageId> pages = ConcurrentHashMap.newKeySet();
+        final AtomicLong work = new AtomicLong();
+        volatile LockRequest waiting;
+        volatile boolean victim;
+    }
+
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<TransactionId, TxnLocks> txns = new ConcurrentHashMap<>();
+    private final long timeoutMs;
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
+
+    // protected by graphLock
+    private final Object graphLock = new Object();
+    private long deadlocks;
+    private long detectionNanos;
+    private long maxDetectionNanos;
+
+    public LockManager() {
+        this(1, NO_TIMEOUT);
+    }
+
+    /**
+     * @param numStripes the number of independently latched parts of the
+     *                   lock table
+     * @param timeoutMs how long a request may block before the requesting
+     *                  transaction is aborted, or NO_TIMEOUT to wait until
+     *                  the lock is granted or a deadlock is detected
+     */
+    public LockManager(int numStripes, long timeoutMs) {
+        this.stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.timeoutMs = timeoutMs;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    /**
+     * Map a page to one of n partitions. Shared with the BufferPool so that
+     * a page's lock stripe and frame partition line up.
+     */
+    static int partitionOf(PageId pid, int n) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h * 0x9E3779B9, n);
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        return stripes[partitionOf(pid, stripes.length)];
+    }
+
+    /**
+     * Acquire a lock on pid for tid, blocking until it can be granted.
+     *
+     * @param tid the requesting transaction
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws DeadlockException if tid was chosen as the victim of a deadlock
+     * @throws TransactionAbortedException if the request times out or the
+     *         waiting thread is interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        TxnLocks txn = txns.get(tid);
+        if (txn == null) {
+            txn = txns.computeIfAbsent(tid, k -> new TxnLocks());
+        }
+        txn.work.incrementAndGet();
+
+        Stripe stripe = stripeFor(pid);
+        PageLock lock;
+        LockRequest request;
+        stripe.latch.lock();
+        try {
+            lock = stripe.locks.get(pid);
+            if (lock == null) {
+                lock = new PageLock(stripe.latch.newCondition());
+                stripe.locks.put(pid, lock);
+            }
+            if (lock.holders.contains(tid) && (lock.exclusive || !exclusive)) {
+                return;
+            }
+            if (lock.waiters.isEmpty() && compatible(lock, tid, exclusive)) {
+                grant(lock, txn, pid, tid, exclusive);
+                return;
+            }
+
+            request = new LockRequest(tid, pid, exclusive);
+            if (lock.holders.contains(tid)) {
+                lock.waiters.addFirst(request);
+            } else {
+                lock.waiters.addLast(request);
+            }
+            txn.waiting = request;
+        } finally {
+            stripe.latch.unlock();
+        }
+
+        // the search latches other stripes, so it runs without ours
+        DeadlockException deadlock = null;
+        try {
+            detectDeadlock(tid);
+        } catch (DeadlockException e) {
+            deadlock = e;
+        }
+
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean granted = false;
+        stripe.latch.lock();
+        try {
+            if (deadlock != null) {
+                throw deadlock;
+            }
+            while (!grantable(lock, request)) {
+                if (txn.victim) {
+                    throw new DeadlockException();
+                }
+                if (timeoutMs == NO_TIMEOUT) {
+                    lock.released.await();
+                } else if (nanos > 0L) {
+                    nanos = lock.released.awaitNanos(nanos);
+                } else {
+                    throw new TransactionAbortedException();
+                }
+            }
+            lock.waiters.remove(request);
+            grant(lock, txn, pid, tid, exclusive);
+            granted = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            txn.waiting = null;
+            txn.victim = false;
+            if (!granted) {
+                lock.waiters.remove(request);
+                if (lock.isFree()) {
+                    stripe.locks.remove(pid);
+                }
+            }
+            if (!lock.waiters.isEmpty()) {
+                // the head of the queue has changed
+                lock.released.signalAll();
+            }
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Release whatever lock tid holds on pid and wake up the waiters on it.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        TxnLocks txn = txns.get(tid);
+        if (txn != null) {
+            txn.pages.remove(pid);
+        }
+        unlock(tid, pid);
+    }
+
+    /**
+     * Release all locks held by tid.
+     *
+     * @return the pages tid held locks on
+     */
+    public Set<PageId> releaseAll(TransactionId tid) {
+        TxnLocks txn = txns.remove(tid);
+        if (txn == null) {
+            return Collections.emptySet();
+        }
+        for (PageId pid : txn.pages) {
+            unlock(tid, pid);
+        }
+        return txn.pages;
+    }
+
+    /** Return true if tid holds a shared or exclusive lock on pid. */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(pid);
+            return lock != null && lock.holders.contains(tid);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Return true if tid holds an exclusive lock on pid. */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(pid);
+            return lock != null && lock.exclusive && lock.holders.contains(tid);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Return true if a transaction other than tid holds an exclusive lock on pid. */
+    public boolean isLockedExclusivelyByOther(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(pid);
+            return lock != null && lock.exclusive && !lock.holders.isEmpty()
+                    && !lock.holders.contains(tid);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Return the pages tid currently holds locks on. */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        TxnLocks txn = txns.get(tid);
+        return txn == null ? Collections.<PageId>emptySet() : new HashSet<>(txn.pages);
+    }
+
+    /** Return the number of deadlocks detected so far. */
+    public long getDeadlockCount() {
+        synchronized (graphLock) {
+            return deadlocks;
+        }
+    }
+
+    /**
+     * Return the total time, in nanoseconds, spent in the waits-for graph
+     * searches that found a deadlock.
+     */
+    public long getTotalDetectionNanos() {
+        synchronized (graphLock) {
+            return detectionNanos;
+        }
+    }
+
+    /** Return the longest single search that found a deadlock, in nanoseconds. */
+    public long getMaxDetectionNanos() {
+        synchronized (graphLock) {
+            return maxDetectionNanos;
+        }
+    }
+
+    // the methods below must be called with the page's stripe latch held
+
+    private boolean compatible(PageLock lock, TransactionId tid, boolean exclusive) {
+        if (lock.holders.isEmpty()) {
+            return true;
+        }
+        if (exclusive) {
+            return lock.holders.size() == 1 && lock.holders.contains(tid);
+        }
+        return !lock.exclusive;
+    }
+
+    /**
+     * A queued request may be granted once it is compatible with the holders
+     * and every request ahead of it is a shared request it can share with.
+     */
+    private boolean grantable(PageLock lock, LockRequest request) {
+        if (!compatible(lock, request.tid, request.exclusive)) {
+            return false;
+        }
+        for (LockRequest ahead : lock.waiters) {
+            if (ahead == request) {
+                return true;
+            }
+            if (ahead.exclusive || request.exclusive) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grant(PageLock lock, TxnLocks txn, PageId pid, TransactionId tid, boolean exclusive) {
+        lock.holders.add(tid);
+        lock.exclusive = lock.exclusive || exclusive;
+        txn.pages.add(pid);
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(pid);
+            if (lock == null || !lock.holders.remove(tid)) {
+                return;
+            }
+            if (lock.holders.isEmpty()) {
+                lock.exclusive = false;
+            }
+            if (lock.isFree()) {
+                stripe.locks.remove(pid);
+            } else {
+                lock.released.signalAll();
+            }
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    // the methods below must be called with graphLock held and no stripe latch
+
+    /**
+     * Return the transactions that a blocked transaction waits for: the
+     * holders of the page it requested and the conflicting requests queued
+     * ahead of it. Victims are treated as already gone. The request the
+     * edges come from is recorded in requests.
+     */
+    private List<TransactionId> waitsFor(TransactionId tid, Map<TransactionId, LockRequest> requests) {
+        TxnLocks txn = txns.get(tid);
+        LockRequest request = txn == null ? null : txn.waiting;
+        if (request == null || txn.victim) {
+            return Collections.emptyList();
+        }
+        requests.put(tid, request);
+        List<TransactionId> edges = new ArrayList<>();
+        Stripe stripe = stripeFor(request.pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(request.pid);
+            if (lock == null || !lock.waiters.contains(request)) {
+                return edges;
+            }
+            for (TransactionId holder : lock.holders) {
+                if (!holder.equals(tid)) {
+                    edges.add(holder);
+                }
+            }
+            for (LockRequest ahead : lock.waiters) {
+                if (ahead == request) {
+                    break;
+                }
+                if ((ahead.exclusive || request.exclusive) && !ahead.tid.equals(tid)) {
+                    edges.add(ahead.tid);
+                }
+            }
+        } finally {
+            stripe.latch.unlock();
+        }
+        return edges;
+    }
+
+    /**
+     * Search the waits-for graph for cycles through tid, which has just
+     * blocked, and break each one by picking a victim. The graph was acyclic
+     * before tid blocked, so every new cycle passes through tid.
+     *
+     * @throws DeadlockException if tid itself is chosen as a victim
+     */
+    private void detectDeadlock(TransactionId tid) throws DeadlockException {
+        synchronized (graphLock) {
+            while (true) {
+                long start = System.nanoTime();
+                Map<TransactionId, LockRequest> requests = new HashMap<>();
+                List<TransactionId> cycle = findCycle(tid, requests);
+                if (cycle == null) {
+                    return;
+                }
+                long elapsed = System.nanoTime() - start;
+                deadlocks++;
+                detectionNanos += elapsed;
+                maxDetectionNanos = Math.max(maxDetectionNanos, elapsed);
+
+                TransactionId victim = chooseVictim(cycle);
+                if (victim.equals(tid)) {
+                    throw new DeadlockException();
+                }
+                TxnLocks txn = txns.get(victim);
+                LockRequest waiting = requests.get(victim);
+                if (txn == null || waiting == null) {
+                    // the victim has ended since, and the cycle with it
+                    continue;
+                }
+                Stripe stripe = stripeFor(waiting.pid);
+                stripe.latch.lock();
+                try {
+                    // the victim may have been granted or given up the request
+                    // since the search; its next request must not be aborted
+                    if (txn.waiting == waiting) {
+                        txn.victim = true;
+                        PageLock lock = stripe.locks.get(waiting.pid);
+                        if (lock != null) {
+                            lock.released.signalAll();
+                        }
+                    }
+                } finally {
+                    stripe.latch.unlock();
+                }
+            }
+        }
+    }
+
+    /** Depth-first search for a path from tid back to itself. */
+    private List<TransactionId> findCycle(TransactionId tid, Map<TransactionId, LockRequest> requests) {
+        LinkedList<TransactionId> path = new LinkedList<>();
+        path.add(tid);
+        return findCycle(tid, tid, path, new HashSet<TransactionId>(), requests) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId origin, TransactionId current, LinkedList<TransactionId> path,
+                              Set<TransactionId> visited, Map<TransactionId, LockRequest> requests) {
+        for (TransactionId next : waitsFor(current, requests)) {
+            if (next.equals(origin)) {
+                return true;
+            }
+            if (visited.add(next)) {
+                path.addLast(next);
+                if (findCycle(origin, next, path, visited, requests)) {
+                    return true;
+                }
+                path.removeLast();
+            }
+        }
+        return false;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        long best = 0;
+        for (TransactionId tid : cycle) {
+            TxnLocks txn = txns.get(tid);
+            long score;
+            switch (victimPolicy) {
+            case FEWEST_LOCKS:
+                score = txn == null ? 0 : -txn.pages.size();
+                break;
+            case LEAST_WORK:
+                score = txn == null ? 0 : -txn.work.get();
+                break;
+            default:
+                score = tid.getId();
+                break;
+            }
+            if (victim == null || score > best) {
+                victim = tid;
+                best = score;
+            }
+        }
+        return victim;
+    }
+}
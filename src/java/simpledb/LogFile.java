@@ -3,6 +3,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 /**
@@ -32,6 +33,12 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p> The buffer pool partitions call logWrite() and force() while
+holding their own latch, when they evict a dirty page.  So this class
+must never call into the BufferPool (discardPage, flushAllPages, ...)
+while holding its own lock; such calls are made after leaving the
+synchronized (this) block.
 */
 
 /**
@@ -51,8 +58,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and SMO
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -67,6 +74,16 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> SMO records end a structure modification of a B+ tree (a split or
+merge) that is kept even if the transaction that made it aborts, i.e. a
+nested top action.  They consist of an integer count of pages, and for
+each page a boolean, true if the transaction keeps the page locked, and a
+page image.  The image is installed by redo like a committed after image.
+For a page the transaction keeps, it also becomes the page's before image
+for the transaction: its undo no longer takes the page back to before the
+structure modification.  A page the transaction does not keep has nothing
+left to undo.
+
 </ul>
 
 */
@@ -82,6 +99,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SMO_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -92,6 +110,29 @@ public class LogFile {
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /** Pages a live transaction has written to the log since it last
+        set their before image in memory, each with the offset of the
+        image rollback restores it to, see getUndoImage. protected by
+        this */
+    private final HashMap<Long,HashMap<PageId,Long>> undoPages = new HashMap<Long,HashMap<PageId,Long>>();
+
+    /** Number of threads the redo pass of recover() is split across. */
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    /** How long the flusher waits for more commits to join a group, in
+        nanoseconds; 0 disables group commit and every commit forces the
+        log itself. protected by this */
+    private long groupCommitWindowNanos = 0;
+    /** Unforced log bytes that end a group commit window early. protected
+        by this */
+    private long groupCommitBytes = 64 * 1024;
+    /** The log is known to be on disk up to this offset. protected by this */
+    private long durableOffset = 0;
+    /** Committers waiting for the flusher. protected by this */
+    private int commitsWaiting = 0;
+    /** Set when the flusher's last force failed. protected by this */
+    private IOException flushError;
+    private Thread flusher;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -149,21 +190,23 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
             synchronized(this) {
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
                 raf.writeInt(ABORT_RECORD);
                 raf.writeLong(tid.getId());
                 raf.writeLong(currentOffset);
                 currentOffset = raf.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                undoPages.remove(tid.getId());
+                tid.ended = true;
             }
         }
     }
@@ -182,8 +225,109 @@ public class LogFile {
         raf.writeLong(tid.getId());
         raf.writeLong(currentOffset);
         currentOffset = raf.getFilePointer();
-        force();
         tidToFirstLogRecord.remove(tid.getId());
+        undoPages.remove(tid.getId());
+        tid.ended = true;
+        if (groupCommitWindowNanos == 0) {
+            force();
+        } else {
+            awaitDurable(currentOffset);
+        }
+    }
+
+    /** Wait until the flusher has forced the log up to ticket.  Other
+        transactions can append to the log while we wait, since wait()
+        gives up the monitor; that is what lets their commits share the
+        same force.
+    */
+    private void awaitDurable(long ticket) throws IOException {
+        commitsWaiting++;
+        notifyAll();
+        try {
+            while (durableOffset < ticket) {
+                if (flushError != null) {
+                    // the flusher could not force the log; try ourselves,
+                    // so the caller sees the error if it persists
+                    force();
+                    break;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            force();
+        } finally {
+            commitsWaiting--;
+        }
+    }
+
+    /** Body of the flusher thread: wait for a committer, let the group
+        commit window fill, then force everything appended so far with a
+        single fsync and wake every committer it covers.  The force
+        itself runs outside the monitor so new records can be appended
+        meanwhile.
+    */
+    private void flushLoop() {
+        while (true) {
+            long target;
+            RandomAccessFile file;
+            synchronized (this) {
+                try {
+                    while (commitsWaiting == 0 || durableOffset >= currentOffset) {
+                        wait();
+                    }
+                    long deadline = System.nanoTime() + groupCommitWindowNanos;
+                    long left;
+                    while (currentOffset - durableOffset < groupCommitBytes
+                           && (left = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                target = currentOffset;
+                file = raf;
+            }
+            try {
+                file.getChannel().force(true);
+                synchronized (this) {
+                    // logTruncate replaces the file, and offsets into the
+                    // old one mean nothing for the new one
+                    if (file == raf && target > durableOffset) {
+                        durableOffset = target;
+                    }
+                    flushError = null;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    flushError = e;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Enable or disable group commit.  With a window greater than zero,
+        logCommit no longer forces the log itself; a flusher thread issues
+        one force for all the commits that arrive within the window, or
+        sooner once maxBytes of log are waiting to be forced.  A longer
+        window adds up to that much latency to each commit in exchange for
+        fewer forces under concurrent load.
+
+        @param windowMicros the group commit window in microseconds, or 0
+        to force the log on every commit
+        @param maxBytes unforced log bytes that end a window early
+    */
+    public synchronized void setGroupCommit(long windowMicros, long maxBytes) {
+        groupCommitWindowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        groupCommitBytes = Math.max(1, maxBytes);
+        if (groupCommitWindowNanos > 0 && flusher == null) {
+            flusher = new Thread(this::flushLoop, "simpledb-log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        notifyAll();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -198,6 +342,9 @@ public class LogFile {
                                        Page after)
         throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
+        // a transaction that was never started through Transaction gets
+        // its BEGIN record here, so that rollback and recovery find it
+        beginIfNew(tid);
         preAppend();
         /* update record conists of
 
@@ -210,14 +357,132 @@ public class LogFile {
         raf.writeInt(UPDATE_RECORD);
         raf.writeLong(tid.getId());
 
+        long beforeOffset = raf.getFilePointer();
         writePageData(raf,before);
         writePageData(raf,after);
         raf.writeLong(currentOffset);
         currentOffset = raf.getFilePointer();
+        undoPagesOf(tid).putIfAbsent(after.getId(), beforeOffset);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
+    /** Write an SMO record to disk for the specified tid, ending a
+        structure modification that is kept even if tid aborts.  The
+        log is not forced.
+
+        @param tid The transaction that made the structure modification
+        @param kept For each page tid keeps locked, the image its undo
+        restores
+        @param released The pages tid has nothing left to undo on
+    */
+    public synchronized void logSmo(TransactionId tid, List<Page> kept,
+                                    List<Page> released)
+        throws IOException {
+        beginIfNew(tid);
+        preAppend();
+        raf.writeInt(SMO_RECORD);
+        raf.writeLong(tid.getId());
+        raf.writeInt(kept.size() + released.size());
+        // the caller sets the before image of each page in memory
+        HashMap<PageId,Long> pages = undoPagesOf(tid);
+        for (Page p : kept) {
+            raf.writeBoolean(true);
+            writePageData(raf, p);
+            pages.remove(p.getId());
+        }
+        for (Page p : released) {
+            raf.writeBoolean(false);
+            writePageData(raf, p);
+            pages.remove(p.getId());
+        }
+        raf.writeLong(currentOffset);
+        currentOffset = raf.getFilePointer();
+    }
+
+    private HashMap<PageId,Long> undoPagesOf(TransactionId tid) {
+        HashMap<PageId,Long> pages = undoPages.get(tid.getId());
+        if (pages == null) {
+            pages = new HashMap<PageId,Long>();
+            undoPages.put(tid.getId(), pages);
+        }
+        return pages;
+    }
+
+    /** Return the image rollback would restore the specified page to,
+        or null if it is the before image of the page in the buffer
+        pool, i.e. the page has not been written out by tid since its
+        before image was set.
+
+        @param tid The live transaction
+        @param pid The page
+    */
+    public synchronized Page getUndoImage(TransactionId tid, PageId pid)
+        throws IOException {
+        HashMap<PageId,Long> pages = undoPages.get(tid.getId());
+        Long offset = pages == null ? null : pages.get(pid);
+        if (offset == null) {
+            return null;
+        }
+        preAppend();
+        raf.seek(offset);
+        Page image = readPageData(raf);
+        raf.seek(currentOffset);
+        return image;
+    }
+
+    /** Read the images rollback restores the pages updated by tid to:
+        the first before image of each page, unless an SMO record has
+        replaced or dropped it since.  Must hold this. */
+    private HashMap<PageId, Page> readUndoImages(TransactionId tid)
+        throws NoSuchElementException, IOException {
+        HashMap<PageId, Page> beforeImages = new HashMap<PageId, Page>();
+        preAppend();
+        Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+        if (firstRecord == null) {
+            throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+        }
+
+        // the first update record of each page holds the image
+        // the page had before this transaction touched it
+        raf.seek(firstRecord);
+        while (raf.getFilePointer() < currentOffset) {
+            int type = raf.readInt();
+            long recordTid = raf.readLong();
+            switch (type) {
+            case UPDATE_RECORD:
+                Page before = readPageData(raf);
+                readPageData(raf);
+                if (recordTid == tid.getId() && !beforeImages.containsKey(before.getId())) {
+                    beforeImages.put(before.getId(), before);
+                }
+                break;
+            case SMO_RECORD:
+                int numPages = raf.readInt();
+                for (int i = 0; i < numPages; i++) {
+                    boolean kept = raf.readBoolean();
+                    Page image = readPageData(raf);
+                    if (recordTid != tid.getId()) {
+                        continue;
+                    }
+                    if (kept) {
+                        beforeImages.put(image.getId(), image);
+                    } else {
+                        beforeImages.remove(image.getId());
+                    }
+                }
+                break;
+            case CHECKPOINT_RECORD:
+                int numXactions = raf.readInt();
+                raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                break;
+            }
+            raf.readLong();
+        }
+        raf.seek(currentOffset);
+        return beforeImages;
+    }
+
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
@@ -254,16 +519,9 @@ public class LogFile {
         String idClassName = raf.readUTF();
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            pid = readPageId(raf, idClassName);
 
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
@@ -271,11 +529,30 @@ public class LogFile {
             byte[] pageData = new byte[pageSize];
             raf.read(pageData); //read before image
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            // use the (PageId, byte[]) constructor; pages may declare
+            // others. B+ tree leaf and internal pages also need the key
+            // field, which their file knows
+            Object[] pageArgs = new Object[] { pid, pageData };
+            Constructor<?> pageConst = pageConsts[0];
+            for (Constructor<?> c : pageConsts) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length < 2 || !params[0].isInstance(pid)
+                    || params[1] != byte[].class) {
+                    continue;
+                }
+                if (params.length == 2) {
+                    pageConst = c;
+                    break;
+                }
+                if (params.length == 3 && params[2] == int.class) {
+                    DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    if (file instanceof BTreeFile) {
+                        pageConst = c;
+                        pageArgs = new Object[] { pid, pageData, ((BTreeFile) file).keyField() };
+                    }
+                }
+            }
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +572,43 @@ public class LogFile {
 
     }
 
+    PageId readPageId(RandomAccessFile raf, String idClassName) throws IOException {
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = raf.readInt();
+            Object idArgs[] = new Object[numIdArgs];
+            for (int i = 0; i<numIdArgs;i++) {
+                idArgs[i] = new Integer(raf.readInt());
+            }
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    /** Read the page id of page data written by writePageData() and skip
+        over the page bytes, without constructing the page. */
+    PageId skipPageData(RandomAccessFile raf) throws IOException {
+        raf.readUTF(); // page class name
+        PageId pid = readPageId(raf, raf.readUTF());
+        int pageSize = raf.readInt();
+        if (raf.skipBytes(pageSize) != pageSize) {
+            throw new EOFException();
+        }
+        return pid;
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -316,18 +630,41 @@ public class LogFile {
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
+    /** Write a BEGIN record for tid unless it is live.  A transaction
+        that has ended is never begun again: recovery would take it for a
+        loser and undo its committed changes.  Must hold this. */
+    private void beginIfNew(TransactionId tid) throws IOException {
+        if (tidToFirstLogRecord.get(tid.getId()) == null) {
+            if (tid.ended) {
+                throw new IOException("transaction " + tid.getId() + " has already ended");
+            }
+            logXactionBegin(tid);
+        }
+    }
+
+    /** Return true if the specified transaction has a BEGIN record and
+        has not yet committed or aborted.
+        @param tid The transaction to check
+    */
+    public synchronized boolean isLive(TransactionId tid) {
+        return tidToFirstLogRecord.get(tid.getId()) != null;
+    }
+
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
+            // each page is logged and the log forced before it is written
+            Database.getBufferPool().flushAllPages();
+            // page writes are not synchronous; make them durable before
+            // the checkpoint lets the log that covers them be truncated
+            Database.getCatalog().forceAll();
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
                 long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
                 startCpOffset = raf.getFilePointer();
                 raf.writeInt(CHECKPOINT_RECORD);
                 raf.writeLong(-1); //no tid , but leave space for convenience
@@ -416,6 +753,14 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case SMO_RECORD:
+                    int numPages = raf.readInt();
+                    logNew.writeInt(numPages);
+                    while (numPages-- > 0) {
+                        logNew.writeBoolean(raf.readBoolean());
+                        writePageData(logNew, readPageData(raf));
+                    }
+                    break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
                     logNew.writeInt(numXactions);
@@ -450,6 +795,14 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        force();
+
+        // the records of live transactions moved along with the rest
+        for (HashMap<PageId,Long> pages : undoPages.values()) {
+            for (Map.Entry<PageId,Long> e : pages.entrySet()) {
+                e.setValue((e.getValue() - minLogRecord) + LONG_SIZE);
+            }
+        }
         //print();
     }
 
@@ -464,9 +817,18 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            HashMap<PageId, Page> beforeImages;
             synchronized(this) {
-                preAppend();
                 // some code goes here
+                beforeImages = readUndoImages(tid);
+            }
+
+            // pages stolen by the buffer pool get their old contents back;
+            // the cached copies are dropped either way
+            for (Page before : beforeImages.values()) {
+                PageId pid = before.getId();
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(before);
+                Database.getBufferPool().discardPage(pid);
             }
         }
     }
@@ -478,6 +840,10 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            if (flusher != null) {
+                flusher.interrupt();
+                flusher = null;
+            }
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -485,19 +851,245 @@ public class LogFile {
         }
     }
 
+    /** Set the number of threads used by the redo pass of recover(). */
+    public synchronized void setRecoveryThreads(int recoveryThreads) {
+        this.recoveryThreads = Math.max(1, recoveryThreads);
+    }
+
+    /** An UPDATE or ABORT record, or a page of an SMO record, found by
+        the analysis pass of recover().  A page of an SMO record has no
+        before offset if its transaction has nothing left to undo on it. */
+    private static class LogEvent {
+        final int type;
+        final long tid;
+        final PageId pid;
+        final long beforeOffset;
+        final long afterOffset;
+
+        LogEvent(int type, long tid, PageId pid, long beforeOffset, long afterOffset) {
+            this.type = type;
+            this.tid = tid;
+            this.pid = pid;
+            this.beforeOffset = beforeOffset;
+            this.afterOffset = afterOffset;
+        }
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        <p> Recovery runs in three passes.  The analysis pass scans the
+        log from the last checkpoint (or from the first record of a
+        transaction that was active at the checkpoint, if earlier),
+        classifying transactions as committed, aborted or losers and
+        noting where every before and after image lives.  Since
+        update records hold whole page images, redo and undo then
+        reduce to installing one image per page: the latest after
+        image of a committed transaction or SMO record, the oldest
+        before image of an aborted transaction at the point of its
+        ABORT record (which repeats its rollback), and finally the
+        oldest before image of every loser; an SMO record replaces the
+        before image of a page for its transaction, see the format
+        above.  The resulting writes are partitioned by PageId
+        across recoveryThreads threads, each reading the log through
+        its own file handle.  Losers get ABORT records so that a later
+        recovery does not undo them again over newer updates.
     */
     public void recover() throws IOException {
+        Set<PageId> recovered;
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    currentOffset = raf.getFilePointer();
+                    return;
+                }
+
+                // analysis
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long start = LONG_SIZE;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    start = cpLoc;
+                    raf.seek(cpLoc);
+                    raf.readInt();
+                    raf.readLong();
+                    int numOutstanding = raf.readInt();
+                    for (int i = 0; i < numOutstanding; i++) {
+                        raf.readLong();
+                        start = Math.min(start, raf.readLong());
+                    }
+                }
+
+                Set<Long> committed = new HashSet<Long>();
+                Set<Long> ended = new HashSet<Long>();
+                LinkedHashMap<Long,Long> firstRecord = new LinkedHashMap<Long,Long>();
+                ArrayList<LogEvent> events = new ArrayList<LogEvent>();
+                long end = start;
+                raf.seek(start);
+                try {
+                    while (raf.getFilePointer() < raf.length()) {
+                        long recordStart = raf.getFilePointer();
+                        int type = raf.readInt();
+                        long recordTid = raf.readLong();
+                        switch (type) {
+                        case UPDATE_RECORD:
+                            long beforeOffset = raf.getFilePointer();
+                            PageId pid = skipPageData(raf);
+                            long afterOffset = raf.getFilePointer();
+                            skipPageData(raf);
+                            events.add(new LogEvent(UPDATE_RECORD, recordTid, pid, beforeOffset, afterOffset));
+                            break;
+                        case SMO_RECORD:
+                            int numPages = raf.readInt();
+                            for (int i = 0; i < numPages; i++) {
+                                boolean kept = raf.readBoolean();
+                                long imageOffset = raf.getFilePointer();
+                                PageId imagePid = skipPageData(raf);
+                                events.add(new LogEvent(SMO_RECORD, recordTid, imagePid,
+                                        kept ? imageOffset : -1, imageOffset));
+                            }
+                            break;
+                        case COMMIT_RECORD:
+                            committed.add(recordTid);
+                            ended.add(recordTid);
+                            break;
+                        case ABORT_RECORD:
+                            events.add(new LogEvent(ABORT_RECORD, recordTid, null, -1, -1));
+                            ended.add(recordTid);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            int numXactions = raf.readInt();
+                            if (raf.skipBytes(numXactions * 2 * LONG_SIZE) != numXactions * 2 * LONG_SIZE) {
+                                throw new EOFException();
+                            }
+                            break;
+                        }
+                        raf.readLong();
+                        if (type != CHECKPOINT_RECORD && !firstRecord.containsKey(recordTid)) {
+                            firstRecord.put(recordTid, recordStart);
+                        }
+                        end = raf.getFilePointer();
+                    }
+                } catch (EOFException e) {
+                    // the last record was torn by the crash
+                }
+                raf.setLength(end);
+
+                // decide which image every page ends up with
+                HashMap<Long,LinkedHashMap<PageId,Long>> oldestBefore =
+                    new HashMap<Long,LinkedHashMap<PageId,Long>>();
+                HashMap<PageId,Long> image = new HashMap<PageId,Long>();
+                for (LogEvent event : events) {
+                    LinkedHashMap<PageId,Long> befores = oldestBefore.get(event.tid);
+                    if (event.type != ABORT_RECORD && befores == null) {
+                        befores = new LinkedHashMap<PageId,Long>();
+                        oldestBefore.put(event.tid, befores);
+                    }
+                    if (event.type == UPDATE_RECORD) {
+                        if (!befores.containsKey(event.pid)) {
+                            befores.put(event.pid, event.beforeOffset);
+                        }
+                        if (committed.contains(event.tid)) {
+                            image.put(event.pid, event.afterOffset);
+                        }
+                    } else if (event.type == SMO_RECORD) {
+                        image.put(event.pid, event.afterOffset);
+                        if (event.beforeOffset >= 0) {
+                            befores.put(event.pid, event.beforeOffset);
+                        } else {
+                            befores.remove(event.pid);
+                        }
+                    } else if (befores != null) {
+                        image.putAll(befores);
+                    }
+                }
+                ArrayList<Long> losers = new ArrayList<Long>();
+                for (Map.Entry<Long,Long> entry : firstRecord.entrySet()) {
+                    if (!ended.contains(entry.getKey())) {
+                        losers.add(entry.getKey());
+                        LinkedHashMap<PageId,Long> befores = oldestBefore.get(entry.getKey());
+                        if (befores != null) {
+                            image.putAll(befores);
+                        }
+                    }
+                }
+
+                redo(image);
+                recovered = image.keySet();
+
+                raf.seek(end);
+                for (Long loser : losers) {
+                    long recordStart = raf.getFilePointer();
+                    raf.writeInt(ABORT_RECORD);
+                    raf.writeLong(loser);
+                    raf.writeLong(recordStart);
+                }
+                currentOffset = raf.getFilePointer();
+                force();
+                tidToFirstLogRecord.clear();
+                undoPages.clear();
+            }
+
+            for (PageId pid : recovered) {
+                Database.getBufferPool().discardPage(pid);
             }
          }
     }
 
+    /** Install the page images at the given log offsets, partitioned by
+        PageId across recoveryThreads threads. */
+    private void redo(Map<PageId,Long> image) throws IOException {
+        int numThreads = Math.max(1, Math.min(recoveryThreads, image.size()));
+        final List<List<Map.Entry<PageId,Long>>> parts = new ArrayList<List<Map.Entry<PageId,Long>>>();
+        for (int i = 0; i < numThreads; i++) {
+            parts.add(new ArrayList<Map.Entry<PageId,Long>>());
+        }
+        for (Map.Entry<PageId,Long> entry : image.entrySet()) {
+            parts.get(Math.floorMod(entry.getKey().hashCode(), numThreads)).add(entry);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final List<Map.Entry<PageId,Long>> part : parts) {
+                done.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        RandomAccessFile in = new RandomAccessFile(logFile, "r");
+                        try {
+                            for (Map.Entry<PageId,Long> entry : part) {
+                                in.seek(entry.getValue());
+                                Page page = readPageData(in);
+                                Database.getCatalog().getDatabaseFile(
+                                        page.getId().getTableId()).writePage(page);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during recovery");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
@@ -505,6 +1097,8 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        durableOffset = currentOffset;
+        notifyAll();
     }
 
 }
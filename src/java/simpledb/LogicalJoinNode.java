@@ -23,6 +23,15 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The join algorithms the optimizer chooses between: probing the
+        index on t2.f2 for each t1 tuple (see {@link IndexNestedLoopJoin}),
+        {@link SortMergeJoin}, {@link HashEquiJoin} and nested loops */
+    public enum Method { INDEX, SORT_MERGE, HASH, NESTED_LOOP }
+
+    /** The algorithm the optimizer chose, or null to let
+        {@link JoinOptimizer#instantiateJoin} pick one by the predicate */
+    public Method method;
+
     public LogicalJoinNode() {
     }
 
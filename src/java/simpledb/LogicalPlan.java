@@ -12,9 +12,9 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * Any number of aggregates may be computed, each over a single field;
+ * they are all planned as one Aggregate operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -27,14 +27,19 @@ public class LogicalPlan {
     private Vector<LogicalFilterNode> filters;
     private HashMap<String,DbIterator> subplanMap;
     private HashMap<String,Integer> tableMap;
+    /** cost of the access path chosen for each alias by physicalPlan */
+    private HashMap<String,Double> scanCosts;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private boolean hasLimit = false;
+    private int limit, offset;
     private String query;
 //    private Query owner;
 
@@ -45,6 +50,7 @@ public class LogicalPlan {
         tables = new Vector<LogicalScanNode>();
         subplanMap = new HashMap<String,DbIterator>();
         tableMap = new HashMap<String,Integer>();
+        scanCosts = new HashMap<String,Double>();
 
         selectList = new Vector<LogicalSelectListNode>();
         this.query = "";
@@ -76,6 +82,15 @@ public class LogicalPlan {
         return tableMap.get(alias);
     }
     
+    /** Return the estimated cost of reading the table with the given alias
+        through the access path {@link #physicalPlan} chose for it (a
+        {@link BTreeScan} or a {@link SeqScan}), or null if no plan has been
+        made yet.
+     */
+    Double getScanCost(String alias) {
+        return scanCosts.get(alias);
+    }
+
     public HashMap<String,Integer> getTableAliasToIdMapping()
     {
         return this.tableMap;
@@ -186,36 +201,82 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null if there is no grouping
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield);
+        if (gfield != null)
+            addGroupBy(gfield);
+    }
+
+    /** Add an aggregate over the field to the query.  All the aggregates
+        of a query are computed together, grouped by the fields passed to
+        {@link #addGroupBy}; adding the same aggregate twice has no effect.
+        @param op the aggregation operator
+        @param afield the field to aggregate over
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
         afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        if (aggIndex(op, afield) < 0) {
+            aggOps.addElement(op);
+            aggFields.addElement(afield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to group the aggregates of the query by.  Fields are
+        output by the Aggregate in the order they are added, before the
+        aggregates.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** Return the position of the aggregate op(afield) among the aggregates
+        of the query, or -1 if there is no such aggregate. */
+    private int aggIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equals(op) && aggFields.elementAt(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields added
+        later break ties between tuples that are equal on the fields added before them.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Return only limit result tuples, after skipping the first offset of them.
+        @param limit the most tuples to return
+        @param offset the number of leading tuples to skip
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+        hasLimit = true;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -271,6 +332,28 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Return the index in td of the field a filter applies to.
+     *  @throws ParsingException if td has no such field
+     */
+    private static int filterFieldIndex(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        try {
+            return td.fieldNameToIndex(lf.fieldQuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+    }
+
+    /** Return the constant a filter compares against, as a field of the
+     *  type of the filtered field in td.
+     */
+    private static Field filterConstant(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Type ftyp = td.getFieldType(filterFieldIndex(lf, td));
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -303,38 +386,59 @@ public class LogicalPlan {
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
+            if (baseTableStats.get(baseTableName) != null)
+                scanCosts.put(table.alias, baseTableStats.get(baseTableName).estimateScanCost());
 
         }
 
-        Iterator<LogicalFilterNode> filterIt = filters.iterator();        
-        while (filterIt.hasNext()) {
-            LogicalFilterNode lf = filterIt.next();
+        // access path selection: a table stored in a B+ tree is read with a
+        // BTreeScan when its most selective filter on the key is cheaper to
+        // answer from the index than by scanning the whole table
+        HashMap<String,LogicalFilterNode> indexFilters = new HashMap<String,LogicalFilterNode>();
+        HashMap<String,Double> indexSelectivities = new HashMap<String,Double>();
+        for (LogicalFilterNode lf : filters) {
             DbIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
-
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (java.util.NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+            DbFile file = Database.getCatalog().getDatabaseFile(this.getTableId(lf.tableAlias));
+            if (!(file instanceof BTreeFile) || lf.p == Predicate.Op.LIKE
+                    || lf.p == Predicate.Op.NOT_EQUALS) {
+                continue;
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            int field = filterFieldIndex(lf, subplan.getTupleDesc());
+            if (field != ((BTreeFile) file).keyField()) {
+                continue;
+            }
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            double sel = s.estimateSelectivity(field, lf.p, filterConstant(lf, subplan.getTupleDesc()));
+            Double best = indexSelectivities.get(lf.tableAlias);
+            if ((best == null || sel < best) && s.estimateIndexScanCost(sel) < s.estimateScanCost()) {
+                indexFilters.put(lf.tableAlias, lf);
+                indexSelectivities.put(lf.tableAlias, sel);
+            }
+        }
+        for (Map.Entry<String,LogicalFilterNode> e : indexFilters.entrySet()) {
+            LogicalFilterNode lf = e.getValue();
+            int tableId = this.getTableId(lf.tableAlias);
+            IndexPredicate ipred = new IndexPredicate(lf.p,
+                    filterConstant(lf, subplanMap.get(lf.tableAlias).getTupleDesc()));
+            subplanMap.put(lf.tableAlias, new BTreeScan(t, tableId, lf.tableAlias, ipred));
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            scanCosts.put(lf.tableAlias, s.estimateIndexScanCost(indexSelectivities.get(lf.tableAlias)));
+        }
 
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+        Iterator<LogicalFilterNode> filterIt = filters.iterator();        
+        while (filterIt.hasNext()) {
+            LogicalFilterNode lf = filterIt.next();
+            DbIterator subplan = subplanMap.get(lf.tableAlias);
+
+            Field f = filterConstant(lf, subplan.getTupleDesc());
+            Predicate p = new Predicate(filterFieldIndex(lf, subplan.getTupleDesc()), lf.p, f);
+            if (indexFilters.get(lf.tableAlias) != lf) {
+                // the filter chosen for a BTreeScan is applied by the scan
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -414,29 +518,40 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
                 TupleDesc td = node.getTupleDesc();
-//                int  id;
                 try {
-//                    id = 
                     td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
                     throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                 }
+                int agg = aggIndex(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+                }
+                outFields.add(groupByFields.size() + agg);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
-                        throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
-                    }
-                    outFields.add(0);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                    }
+                    int gb = -1;
+                    for (int j = 0; j < groupByFields.size() && gb < 0; j++) {
+                        try {
+                            if (td.fieldNameToIndex(groupByFields.elementAt(j)) == id)
+                                gb = j;
+                        } catch (NoSuchElementException e) {
+                            throw new ParsingException("Unknown field " +  groupByFields.elementAt(j) + " in GROUP BY statement");
+                        }
+                    }
+                    if (gb < 0) {
+                        throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
+                    outFields.add(gb);
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
                     TupleDesc td = node.getTupleDesc();
@@ -462,10 +577,17 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggFields.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                }
+                aggNode = new Aggregate(node, afields, aops, gfields);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,7 +597,27 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                try {
+                    oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.elementAt(i) + " in ORDER BY");
+                }
+                ascs[i] = oByAscs.elementAt(i);
+            }
+            // only the first rows are needed, so no full sort, unless they do
+            // not fit in memory
+            if (hasLimit && TopN.fitsInMemory(node.getTupleDesc(), limit, offset))
+                node = new TopN(oByIndexes, ascs, limit, offset, node);
+            else {
+                node = new OrderBy(oByIndexes, ascs, node);
+                if (hasLimit)
+                    node = new Limit(limit, offset, node);
+            }
+        } else if (hasLimit) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
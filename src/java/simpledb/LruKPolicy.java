@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * LRU-2 replacement. Each frame remembers the logical times of its last two
+ * accesses, and the victim is the frame whose second most recent access is
+ * oldest. Frames that have been accessed only once have an infinite backward
+ * distance and go first, oldest access first, so a single scan cannot push
+ * out pages that are used repeatedly.
+ * <p>
+ * The frames are kept in a binary min-heap stored in int arrays and keyed by
+ * (penultimate access, last access). The best victim is always at the top,
+ * and an access costs O(log capacity) to restore heap order.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    private final long[] last;
+    private final long[] penultimate;
+    private final int[] heap;
+    private final int[] position; // index of each frame in heap, -1 if absent
+    private final int[] skipped;
+    private int size;
+    private long clock;
+
+    public LruKPolicy(int capacity) {
+        last = new long[capacity];
+        penultimate = new long[capacity];
+        heap = new int[capacity];
+        position = new int[capacity];
+        skipped = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            position[i] = -1;
+        }
+    }
+
+    public int capacity() {
+        return heap.length;
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        last[frame] = ++clock;
+        penultimate[frame] = 0;
+        position[frame] = size;
+        heap[size++] = frame;
+        siftUp(position[frame]);
+    }
+
+    public void pageAccessed(int frame) {
+        penultimate[frame] = last[frame];
+        last[frame] = ++clock;
+        // keys only grow, so the frame can only move down
+        siftDown(position[frame]);
+    }
+
+    public void pageRemoved(int frame) {
+        int i = position[frame];
+        if (i < 0) {
+            return;
+        }
+        removeAt(i);
+    }
+
+    public int evict(IntPredicate evictable) {
+        int numSkipped = 0;
+        int victim = -1;
+        while (size > 0) {
+            int frame = heap[0];
+            removeAt(0);
+            if (evictable.test(frame)) {
+                victim = frame;
+                break;
+            }
+            skipped[numSkipped++] = frame;
+        }
+        for (int i = 0; i < numSkipped; i++) {
+            int frame = skipped[i];
+            position[frame] = size;
+            heap[size++] = frame;
+            siftUp(position[frame]);
+        }
+        return victim;
+    }
+
+    private boolean less(int a, int b) {
+        if (penultimate[a] != penultimate[b]) {
+            return penultimate[a] < penultimate[b];
+        }
+        return last[a] < last[b];
+    }
+
+    private void removeAt(int i) {
+        int frame = heap[i];
+        position[frame] = -1;
+        size--;
+        if (i == size) {
+            return;
+        }
+        int moved = heap[size];
+        heap[i] = moved;
+        position[moved] = i;
+        siftDown(i);
+        siftUp(position[moved]);
+    }
+
+    private void siftUp(int i) {
+        int frame = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(frame, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            position[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = frame;
+        position[frame] = i;
+    }
+
+    private void siftDown(int i) {
+        int frame = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], frame)) {
+                break;
+            }
+            heap[i] = heap[child];
+            position[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = frame;
+        position[frame] = i;
+    }
+}
@@ -4,21 +4,38 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Input that fits in the memory budget is sorted in memory. Larger input is
+ * sorted externally: the child is cut into sorted runs of at most the
+ * budget, each written to a temporary {@link SpillFile}, and the runs are
+ * merged with a loser tree as tuples are fetched. When there are more runs
+ * than can be merged at once they are first merged in groups, in extra
+ * passes over the data. The sort is stable.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** most runs merged at once, which bounds the open files */
+    private static final int MAX_FAN_IN = 256;
+
+    private static volatile long defaultMemoryBudget = 32L << 20;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
     private String orderByFieldName;
     private Iterator<Tuple> it;
-    private boolean asc;
+    private boolean[] asc;
+    private long memoryBudget = defaultMemoryBudget;
+
+    /** sorted runs on disk, if the input did not fit in memory */
+    private transient ArrayList<SpillFile> runs;
+    private transient LoserTree merger;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,28 +44,73 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: ties on the
+     * first field are broken by the second, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order per field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc.clone();
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /** Return the fields sorted on, most significant first. */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * Set the number of bytes of tuples the sort may hold in memory. Input
+     * that does not fit is sorted in runs on disk.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = Math.max(1, bytes);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Set the memory budget of sorts created from now on. */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = Math.max(1, bytes);
+    }
+
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,38 +118,140 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        TupleComparator cmp = new TupleComparator(orderByFields, asc);
+        long tupleBytes = SpillFile.estimateBytes(td);
+        long bytes = 0;
+        runs = new ArrayList<SpillFile>();
+        // load the tuples in a collection, and sort it; whenever it is full,
+        // write it out as a sorted run
+        childTups = new ArrayList<Tuple>();
+        while (child.hasNext()) {
+            if (bytes + tupleBytes > memoryBudget && !childTups.isEmpty()) {
+                runs.add(writeRun(cmp));
+                childTups = new ArrayList<Tuple>();
+                bytes = 0;
+            }
+            childTups.add(child.next());
+            bytes += tupleBytes;
+        }
+        if (runs.isEmpty()) {
+            Collections.sort(childTups, cmp);
+            it = childTups.iterator();
+        } else {
+            if (!childTups.isEmpty()) {
+                runs.add(writeRun(cmp));
+            }
+            childTups = null;
+            int fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN,
+                    memoryBudget / SpillFile.BUFFER_SIZE));
+            while (runs.size() > fanIn) {
+                mergePass(fanIn, cmp);
+            }
+            merger = new LoserTree(readers(runs), cmp);
+        }
         super.open();
     }
 
     public void close() {
         super.close();
+        child.close();
         it = null;
+        if (merger != null) {
+            merger.close();
+            merger = null;
+        }
+        if (runs != null) {
+            for (SpillFile run : runs) {
+                run.delete();
+            }
+            runs = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (merger != null) {
+            merger.close();
+            merger = new LoserTree(readers(runs), merger.cmp);
+        } else {
+            it = childTups.iterator();
+        }
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merger != null) {
+            return merger.next();
+        }
         if (it != null && it.hasNext()) {
             return it.next();
         } else
             return null;
     }
 
+    /** Sort childTups and write them out as a run. */
+    private SpillFile writeRun(TupleComparator cmp) throws DbException {
+        Collections.sort(childTups, cmp);
+        SpillFile run = new SpillFile(td);
+        try {
+            for (Tuple t : childTups) {
+                run.add(t);
+            }
+        } catch (DbException e) {
+            run.delete();
+            throw e;
+        }
+        return run;
+    }
+
+    /**
+     * Merge each group of fanIn consecutive runs into one, keeping the runs
+     * in input order so that the sort stays stable.
+     */
+    private void mergePass(int fanIn, TupleComparator cmp) throws DbException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        try {
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+                SpillFile out = new SpillFile(td);
+                merged.add(out);
+                LoserTree tree = new LoserTree(readers(group), cmp);
+                try {
+                    Tuple t;
+                    while ((t = tree.next()) != null) {
+                        out.add(t);
+                    }
+                } finally {
+                    tree.close();
+                }
+                for (SpillFile run : group) {
+                    run.delete();
+                }
+            }
+        } catch (DbException e) {
+            // close() only deletes the runs of the last complete pass
+            for (SpillFile run : merged) {
+                run.delete();
+            }
+            throw e;
+        }
+        runs = merged;
+    }
+
+    private static SpillFile.Reader[] readers(List<SpillFile> files) throws DbException {
+        SpillFile.Reader[] readers = new SpillFile.Reader[files.size()];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = files.get(i).reader();
+        }
+        return readers;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -98,26 +262,92 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * Merges sorted runs with a tree of losers: each internal node remembers
+     * the run that lost the comparison made there, so that after the winner
+     * is taken only the comparisons on its path to the root are replayed,
+     * one per level. Ties go to the earlier run.
+     */
+    private static class LoserTree {
+        private final SpillFile.Reader[] sources;
+        /** next tuple of each run, or null once it is exhausted */
+        private final Tuple[] heads;
+        /** tree[0] is the winner, tree[1..k-1] the losers at each node */
+        private final int[] tree;
+        private final TupleComparator cmp;
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        LoserTree(SpillFile.Reader[] sources, TupleComparator cmp) throws DbException {
+            this.sources = sources;
+            this.cmp = cmp;
+            int k = sources.length;
+            heads = new Tuple[k];
+            tree = new int[Math.max(1, k)];
+            Arrays.fill(tree, -1);
+            for (int i = 0; i < k; i++) {
+                heads[i] = sources[i].hasNext() ? sources[i].next() : null;
+            }
+            // the first run to reach a node waits there for the winner of
+            // the other subtree; the loser of that match stays
+            for (int i = k - 1; i >= 0; i--) {
+                int winner = i;
+                int node = (i + k) / 2;
+                for (; node > 0; node /= 2) {
+                    if (tree[node] == -1) {
+                        tree[node] = winner;
+                        break;
+                    }
+                    if (beats(tree[node], winner)) {
+                        int t = tree[node];
+                        tree[node] = winner;
+                        winner = t;
+                    }
+                }
+                if (node == 0) {
+                    tree[0] = winner;
+                }
+            }
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        /** Return the smallest remaining tuple, or null if all runs are done. */
+        Tuple next() throws DbException {
+            if (sources.length == 0) {
+                return null;
+            }
+            int winner = tree[0];
+            Tuple out = heads[winner];
+            if (out == null) {
+                return null;
+            }
+            SpillFile.Reader r = sources[winner];
+            heads[winner] = r.hasNext() ? r.next() : null;
+            for (int node = (winner + sources.length) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], winner)) {
+                    int t = tree[node];
+                    tree[node] = winner;
+                    winner = t;
+                }
+            }
+            tree[0] = winner;
+            return out;
+        }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        /** Return true if the head of run a comes before the head of run b. */
+        private boolean beats(int a, int b) {
+            if (heads[a] == null) {
+                return false;
+            }
+            if (heads[b] == null) {
+                return true;
+            }
+            int c = cmp.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        void close() {
+            for (SpillFile.Reader r : sources) {
+                r.close();
+            }
+        }
     }
-    
+
 }
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PageStore is the page I/O layer shared by the DbFile implementations. It
+ * keeps one FileChannel open for the life of the table and reads and writes
+ * pages with positional I/O, so concurrent readers never share a file pointer
+ * and no stream or file object is created per page.
+ * <p>
+ * Each thread copies pages through its own direct buffer, which avoids the
+ * hidden temporary buffer the channel would otherwise use for heap arrays.
+ * <p>
+ * How much a write promises is chosen explicitly with {@link Durability}. With
+ * the write-ahead log in place, page writes do not need to be synchronous: a
+ * checkpoint forces every table in the Catalog before it lets the log go.
+ * <p>
+ * The channel stays open until {@link #close}, which the owning DbFile calls
+ * when the Catalog drops or replaces its table.
+ */
+public class PageStore implements Closeable {
+
+    /** What a completed write guarantees. */
+    public enum Durability {
+        /** writes reach the operating system; call force() to make them durable */
+        NONE,
+        /** every write forces the page data, but not file metadata, to disk */
+        SYNC_DATA,
+        /** every write forces the page data and file metadata to disk */
+        SYNC
+    }
+
+    private static final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<>();
+
+    private final File file;
+    private final Durability durability;
+    private volatile FileChannel channel;
+
+    /**
+     * Create a store for the given file. The file is opened, and created if
+     * necessary, on the first read or write.
+     */
+    public PageStore(File file, Durability durability) {
+        this.file = file;
+        this.durability = durability;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Read up to dst.length bytes starting at offset into dst.
+     *
+     * @return the number of bytes read, which is less than dst.length only at
+     *         the end of the file, or -1 if offset is at or past the end
+     */
+    public int read(byte[] dst, long offset) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buf = buffer(dst.length);
+        int n = 0;
+        while (buf.hasRemaining()) {
+            int r = ch.read(buf, offset + n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        if (n == 0 && dst.length > 0) {
+            return -1;
+        }
+        buf.flip();
+        buf.get(dst, 0, n);
+        return n;
+    }
+
+    /** Write all of src at offset, extending the file if needed. */
+    public void write(byte[] src, long offset) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buf = buffer(src.length);
+        buf.put(src).flip();
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+        if (durability != Durability.NONE) {
+            ch.force(durability == Durability.SYNC);
+        }
+    }
+
+    /**
+     * Map size bytes of the file starting at offset, read only. Writes made
+     * through this store are visible through the mapping. The mapping is
+     * released when the returned buffer is garbage collected.
+     */
+    public MappedByteBuffer map(long offset, long size) throws IOException {
+        return channel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    /** Return the current size of the file in bytes. */
+    public long size() throws IOException {
+        FileChannel ch = channel;
+        return ch != null ? ch.size() : file.length();
+    }
+
+    /** Force everything written so far to disk. */
+    public void force() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null) {
+            ch.force(true);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null) {
+                    ch = FileChannel.open(file.toPath(),
+                            StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE);
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /** Return this thread's scratch buffer, cleared and limited to size bytes. */
+    private static ByteBuffer buffer(int size) {
+        ByteBuffer buf = scratch.get();
+        if (buf == null || buf.capacity() < size) {
+            buf = ByteBuffer.allocateDirect(size);
+            scratch.set(buf);
+        }
+        buf.clear().limit(size);
+        return buf;
+    }
+}
@@ -0,0 +1,45 @@
+package simpledb;
+
+import java.util.function.IntPredicate;
+
+/**
+ * ReplacementPolicy decides which buffer pool frame to evict when the pool
+ * is full. The BufferPool identifies frames by their index in
+ * [0, capacity()) and reports every load, hit and removal, so that the
+ * policy can keep its bookkeeping in per-frame arrays instead of scanning
+ * the resident pages.
+ * <p>
+ * Implementations are not thread-safe; the BufferPool calls them while
+ * holding its latch.
+ *
+ * @see ClockPolicy
+ * @see LruKPolicy
+ * @see TwoQueuePolicy
+ */
+public interface ReplacementPolicy {
+
+    /** Return the number of frames this policy was created for. */
+    public int capacity();
+
+    /**
+     * A page has been read into an empty frame.
+     *
+     * @param frame the frame the page was loaded into
+     * @param pid the id of the loaded page
+     */
+    public void pageLoaded(int frame, PageId pid);
+
+    /** The page in frame has been requested again. */
+    public void pageAccessed(int frame);
+
+    /** The page in frame has been dropped from the pool without being evicted. */
+    public void pageRemoved(int frame);
+
+    /**
+     * Choose a frame to evict and forget about it.
+     *
+     * @param evictable tells whether the page in a frame may be evicted
+     * @return the evicted frame, or -1 if no resident page may be evicted
+     */
+    public int evict(IntPredicate evictable);
+}
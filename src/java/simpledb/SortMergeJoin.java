@@ -0,0 +1,254 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs that are sorted on their join fields by
+ * reading each of them once, in step. Inputs that are not already in
+ * ascending order on the join field are sorted with an {@link OrderBy} first;
+ * inputs that are (see {@link #isSortedOn}) are used as they are.
+ * <p>
+ * Equality joins keep only the run of right tuples sharing the current key
+ * in memory, so duplicates on both sides are handled. For the range
+ * predicates the tuples matching the current tuple of one input always form
+ * a prefix of the other input, which only grows; that prefix is what is kept.
+ * Other predicates are not supported.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator[] children;
+
+    private transient TupleDesc td;
+    /** tuple being joined with the buffered tuples of the other input */
+    private transient Tuple outer;
+    /** for EQUALS, the right tuples with the current key; for the range
+        predicates, the prefix of the other input that matches outer */
+    private transient ArrayList<Tuple> buffer;
+    private transient int bufferIndex;
+    /** key of the run of right tuples in buffer (EQUALS only) */
+    private transient Field bufferKey;
+    /** next unconsumed tuple of the input that fills buffer */
+    private transient Tuple lookahead;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on; children that are not sorted on their join fields are sorted.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be =, &lt;, &lt;=, &gt; or &gt;=
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("sort-merge join does not support "
+                    + p.getOperator());
+        }
+        this.p = p;
+        this.children = new DbIterator[2];
+        children[0] = isSortedOn(child1, p.getField1()) ? child1
+                : new OrderBy(p.getField1(), true, child1);
+        children[1] = isSortedOn(child2, p.getField2()) ? child2
+                : new OrderBy(p.getField2(), true, child2);
+    }
+
+    /** Return true if a sort-merge join can evaluate the given operator. */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * Return true if it is known that it produces its tuples in ascending
+     * order of field: it is an ascending OrderBy on that field, a scan of a
+     * B+ tree keyed on that field, or a Filter over one of those.
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof Filter) {
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        }
+        String table;
+        if (it instanceof SeqScan) {
+            table = ((SeqScan) it).getTableName();
+        } else if (it instanceof BTreeScan) {
+            table = ((BTreeScan) it).getTableName();
+        } else {
+            return false;
+        }
+        try {
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(table));
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return children[0].getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return children[1].getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(children[0].getTupleDesc(), children[1].getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        children[0].open();
+        children[1].open();
+        super.open();
+        td = getTupleDesc();
+        buffer = new ArrayList<>();
+        bufferIndex = 0;
+        bufferKey = null;
+        outer = null;
+        lookahead = bufferedInput().hasNext() ? bufferedInput().next() : null;
+    }
+
+    public void close() {
+        super.close();
+        children[0].close();
+        children[1].close();
+        buffer = null;
+        outer = null;
+        lookahead = null;
+        bufferKey = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with {@link Join}, the result is the concatenation of
+     * the joining left and right tuples.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        switch (p.getOperator()) {
+        case EQUALS:
+            return nextEquals();
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            return nextLess();
+        default:
+            return nextGreater();
+        }
+    }
+
+    /** left = right: stream the left input past runs of equal right keys. */
+    private Tuple nextEquals() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (outer != null && bufferIndex < buffer.size()) {
+                return Tuple.merge(td, outer, buffer.get(bufferIndex++));
+            }
+            if (!children[0].hasNext()) {
+                return null;
+            }
+            outer = children[0].next();
+            bufferIndex = 0;
+            Field key = outer.getField(p.getField1());
+            if (bufferKey != null && key.compare(Predicate.Op.EQUALS, bufferKey)) {
+                continue; // same key as the previous left tuple
+            }
+            buffer.clear();
+            bufferKey = null;
+            while (lookahead != null
+                   && lookahead.getField(p.getField2()).compare(Predicate.Op.LESS_THAN, key)) {
+                lookahead = children[1].hasNext() ? children[1].next() : null;
+            }
+            if (lookahead == null) {
+                return null; // no right tuple can match this or any later key
+            }
+            while (lookahead != null
+                   && lookahead.getField(p.getField2()).compare(Predicate.Op.EQUALS, key)) {
+                buffer.add(lookahead);
+                lookahead = children[1].hasNext() ? children[1].next() : null;
+            }
+            if (!buffer.isEmpty()) {
+                bufferKey = key;
+            }
+        }
+    }
+
+    /**
+     * left &lt; right (or &lt;=): stream the right input; the left tuples
+     * matching each right tuple are a prefix of the left input.
+     */
+    private Tuple nextLess() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (outer != null && bufferIndex < buffer.size()) {
+                return Tuple.merge(td, buffer.get(bufferIndex++), outer);
+            }
+            if (!children[1].hasNext()) {
+                return null;
+            }
+            outer = children[1].next();
+            bufferIndex = 0;
+            Field key = outer.getField(p.getField2());
+            while (lookahead != null
+                   && lookahead.getField(p.getField1()).compare(p.getOperator(), key)) {
+                buffer.add(lookahead);
+                lookahead = children[0].hasNext() ? children[0].next() : null;
+            }
+        }
+    }
+
+    /**
+     * left &gt; right (or &gt;=): stream the left input; the right tuples
+     * matching each left tuple are a prefix of the right input.
+     */
+    private Tuple nextGreater() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (outer != null && bufferIndex < buffer.size()) {
+                return Tuple.merge(td, outer, buffer.get(bufferIndex++));
+            }
+            if (!children[0].hasNext()) {
+                return null;
+            }
+            outer = children[0].next();
+            bufferIndex = 0;
+            Field key = outer.getField(p.getField1());
+            while (lookahead != null
+                   && key.compare(p.getOperator(), lookahead.getField(p.getField2()))) {
+                buffer.add(lookahead);
+                lookahead = children[1].hasNext() ? children[1].next() : null;
+            }
+        }
+    }
+
+    /** The input whose tuples are collected in buffer. */
+    private DbIterator bufferedInput() {
+        Predicate.Op op = p.getOperator();
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                ? children[0] : children[1];
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children;
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * A temporary file of tuples, used by operators that run out of memory to
+ * park part of their input on disk. Tuples are appended in their fixed-size
+ * serialized form and read back in the order they were written. The file is
+ * deleted by {@link #delete}, which the operator that made it calls once it
+ * is done with it or closes.
+ */
+class SpillFile {
+
+    /** bytes buffered by each open writer or reader */
+    static final int BUFFER_SIZE = 8192;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private long count;
+
+    SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        File f = null;
+        try {
+            f = File.createTempFile("simpledb-spill", ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(f), BUFFER_SIZE));
+        } catch (IOException e) {
+            if (f != null) {
+                f.delete();
+            }
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+        file = f;
+    }
+
+    /** Rough heap footprint of a tuple with the given descriptor. */
+    static long estimateBytes(TupleDesc desc) {
+        return 48 + 24L * desc.numFields() + desc.getSize();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Append a tuple. Must not be called once the file has been read. */
+    void add(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        count++;
+    }
+
+    /** Return the number of tuples in the file. */
+    long size() {
+        return count;
+    }
+
+    /**
+     * Finish writing and return a reader positioned at the first tuple. May
+     * be called more than once to read the file again.
+     */
+    Reader reader() throws DbException {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            return new Reader(new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BUFFER_SIZE)));
+        } catch (IOException e) {
+            throw new DbException("could not read spill file: " + e.getMessage());
+        }
+    }
+
+    /** Close and remove the file. */
+    void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is being thrown away
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /** Reads the tuples of a SpillFile back in order. */
+    class Reader {
+        private final DataInputStream in;
+        private long read;
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        boolean hasNext() {
+            return read < count;
+        }
+
+        Tuple next() throws DbException {
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(in));
+                }
+            } catch (ParseException e) {
+                throw new DbException("corrupt spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written through this stream
+            }
+        }
+    }
+}
@@ -61,9 +61,12 @@ public class StringField implements Field {
 			s = news;
 		}
 		dos.writeInt(s.length());
-		dos.writeBytes(s);
-		while (overflow-- > 0)
-			dos.write((byte) 0);
+		// the characters and the padding go out in one write, as writing them
+		// byte by byte dominates the cost of taking page images
+		byte[] bytes = new byte[maxSize];
+		for (int i = 0; i < s.length(); i++)
+			bytes[i] = (byte) s.charAt(i);
+		dos.write(bytes);
 	}
 
 	/**
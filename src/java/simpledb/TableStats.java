@@ -61,6 +61,8 @@ public class TableStats {
 
     private final int baseTups;
     private final int basePages;
+    /** levels of the B+ tree the table is stored in, or 0 for a heap file */
+    private final int indexHeight;
     private final int costPerPageIO;
     private final Object[] histograms;
     private final int[] maxs, mins;
@@ -93,8 +95,9 @@ public class TableStats {
         DbFile f = Database.getCatalog().getDatabaseFile(tableid);
         td = f.getTupleDesc();
 
-        if (!(f instanceof HeapFile)) {
+        if (!(f instanceof HeapFile || f instanceof BTreeFile)) {
             basePages = 0;
+            indexHeight = 0;
             baseTups = 0;
             this.costPerPageIO=ioCostPerPage;
             histograms=null;
@@ -142,7 +145,9 @@ public class TableStats {
             }
         }
 
-        basePages = ((HeapFile) f).numPages();
+        basePages = f instanceof HeapFile ? ((HeapFile) f).numPages()
+                : ((BTreeFile) f).numPages();
+        indexHeight = f instanceof BTreeFile ? ((BTreeFile) f).estimateHeight() : 0;
         int count = 0;
         try {
             Transaction t = new Transaction();
@@ -189,6 +194,23 @@ public class TableStats {
         //return 0;
     }
 
+    /**
+     * Estimates the cost of reading only the tuples that satisfy a predicate
+     * on the key of a table stored in a B+ tree: one descent from the root
+     * to the first matching leaf, then the given fraction of the pages along
+     * the leaf chain. For a heap file this is the cost of a full scan.
+     * 
+     * @param selectivity
+     *            The selectivity of the predicate on the key field
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        if (indexHeight == 0) {
+            return estimateScanCost();
+        }
+        return (indexHeight + Math.ceil(basePages * selectivity)) * costPerPageIO;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
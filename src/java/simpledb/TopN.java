@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN implements an ORDER BY followed by LIMIT ... OFFSET ...: it returns
+ * the tuples of its child that would be at positions offset to
+ * offset+limit-1 of the sorted input. Rather than sorting the whole input it
+ * keeps the best limit+offset tuples seen so far in a bounded heap, so it
+ * needs memory for those tuples only. Ties keep their input order, as in
+ * {@link OrderBy}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int limit;
+    private final int offset;
+
+    private transient ArrayList<Tuple> top;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Constructor.
+     *
+     * @param orderbyFields
+     *            the fields to sort on, most significant first
+     * @param asc
+     *            for each field, true if the sort order is ascending
+     * @param limit
+     *            the most tuples to return
+     * @param offset
+     *            the number of leading tuples of the sorted input to skip
+     * @param child
+     *            the tuples to sort
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, int offset, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order per field");
+        }
+        if (limit < 0 || offset < 0) {
+            throw new IllegalArgumentException("negative LIMIT or OFFSET");
+        }
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * Return true if the limit+offset tuples of the given descriptor that a
+     * TopN holds fit in the memory budget of a sort. TopN cannot spill, so
+     * beyond that an {@link OrderBy} followed by a {@link Limit} is used.
+     */
+    public static boolean fitsInMemory(TupleDesc td, int limit, int offset) {
+        return ((long) limit + offset) * SpillFile.estimateBytes(td) <= OrderBy.getDefaultMemoryBudget();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        int n = (int) Math.min(Integer.MAX_VALUE, (long) limit + offset);
+        TupleComparator cmp = new TupleComparator(orderByFields, asc);
+        // the heap's head is the worst tuple kept; among equal tuples the
+        // one read last counts as worse
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, Math.min(n, 1024)),
+                (a, b) -> {
+                    int c = cmp.compare(b.tuple, a.tuple);
+                    return c != 0 ? c : Long.compare(b.seq, a.seq);
+                });
+        long seq = 0;
+        if (n > 0) {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < n) {
+                    heap.add(new Entry(t, seq));
+                } else if (cmp.compare(t, heap.peek().tuple) < 0) {
+                    heap.poll();
+                    heap.add(new Entry(t, seq));
+                }
+                seq++;
+            }
+        }
+        Entry[] best = heap.toArray(new Entry[0]);
+        Arrays.sort(best, (a, b) -> {
+            int c = cmp.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        });
+        top = new ArrayList<Tuple>(Math.max(0, best.length - offset));
+        for (int i = offset; i < best.length; i++) {
+            top.add(best[i].tuple);
+        }
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = null;
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+    /** A tuple kept in the heap, with its position in the input. */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+}
@@ -12,6 +12,8 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    /** Set once the transaction has a COMMIT or ABORT record in the log */
+    volatile boolean ended = false;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
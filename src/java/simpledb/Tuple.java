@@ -85,6 +85,23 @@ public class Tuple implements Serializable {
         return data[i];
     }
 
+    /**
+     * Join two tuples into one with the schema td, which must be
+     * TupleDesc.merge of their schemas: the fields of left followed by
+     * the fields of right.
+     */
+    static Tuple merge(TupleDesc td, Tuple left, Tuple right) {
+        Tuple out = new Tuple(td);
+        int n1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++) {
+            out.setField(i, left.getField(i));
+        }
+        for (int i = 0; i < right.getTupleDesc().numFields(); i++) {
+            out.setField(n1 + i, right.getField(i));
+        }
+        return out;
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
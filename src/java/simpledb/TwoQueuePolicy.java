@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha). Pages referenced once enter a FIFO
+ * queue, A1in. Pages referenced again after leaving A1in go to an LRU queue,
+ * Am. A1out remembers the ids of the pages most recently evicted from A1in,
+ * which is how a second reference is recognized. Scans pass through A1in
+ * without disturbing the working set in Am.
+ * <p>
+ * Both queues are doubly linked lists threaded through per-frame int arrays,
+ * so every operation is constant time apart from skipping frames that cannot
+ * be evicted.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private static final byte NONE = 0;
+    private static final byte A1IN = 1;
+    private static final byte AM = 2;
+
+    private final PageId[] pids;
+    private final byte[] queue;
+    private final int[] prev;
+    private final int[] next;
+    private final int[] head = {-1, -1, -1};
+    private final int[] tail = {-1, -1, -1};
+    private final int[] length = new int[3];
+
+    /** maximum size of A1in before it is preferred for eviction */
+    private final int kin;
+    /** maximum number of ids remembered in A1out */
+    private final int kout;
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+
+    public TwoQueuePolicy(int capacity) {
+        pids = new PageId[capacity];
+        queue = new byte[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        kin = Math.max(1, capacity / 4);
+        kout = Math.max(1, capacity / 2);
+    }
+
+    public int capacity() {
+        return queue.length;
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        pids[frame] = pid;
+        if (a1out.remove(pid)) {
+            append(AM, frame);
+        } else {
+            append(A1IN, frame);
+        }
+    }
+
+    public void pageAccessed(int frame) {
+        if (queue[frame] == AM) {
+            unlink(frame);
+            append(AM, frame);
+        }
+        // hits in A1in are deliberately ignored: they are usually correlated
+    }
+
+    public void pageRemoved(int frame) {
+        if (queue[frame] != NONE) {
+            unlink(frame);
+        }
+        pids[frame] = null;
+    }
+
+    public int evict(IntPredicate evictable) {
+        int frame = -1;
+        if (length[A1IN] > kin || length[AM] == 0) {
+            frame = firstEvictable(A1IN, evictable);
+            if (frame < 0) {
+                frame = firstEvictable(AM, evictable);
+            }
+        } else {
+            frame = firstEvictable(AM, evictable);
+            if (frame < 0) {
+                frame = firstEvictable(A1IN, evictable);
+            }
+        }
+        if (frame < 0) {
+            return -1;
+        }
+        if (queue[frame] == A1IN) {
+            a1out.add(pids[frame]);
+            if (a1out.size() > kout) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        unlink(frame);
+        pids[frame] = null;
+        return frame;
+    }
+
+    private int firstEvictable(byte q, IntPredicate evictable) {
+        for (int frame = head[q]; frame >= 0; frame = next[frame]) {
+            if (evictable.test(frame)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    private void append(byte q, int frame) {
+        queue[frame] = q;
+        prev[frame] = tail[q];
+        next[frame] = -1;
+        if (tail[q] >= 0) {
+            next[tail[q]] = frame;
+        } else {
+            head[q] = frame;
+        }
+        tail[q] = frame;
+        length[q]++;
+    }
+
+    private void unlink(int frame) {
+        byte q = queue[frame];
+        if (prev[frame] >= 0) {
+            next[prev[frame]] = next[frame];
+        } else {
+            head[q] = next[frame];
+        }
+        if (next[frame] >= 0) {
+            prev[next[frame]] = prev[frame];
+        } else {
+            tail[q] = prev[frame];
+        }
+        queue[frame] = NONE;
+        length[q]--;
+    }
+}